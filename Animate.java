@@ -0,0 +1,176 @@
+/*
+ * Animate.java
+ * Description: Headless animation driver. Renders a sequence of frames
+ * of a random sphere scene in which a fraction of the spheres move
+ * each frame. Moves are applied to the quadtrees in place, touching
+ * only the leaves a sphere's old and new bounds overlap, rather than
+ * rebuilding both trees for every frame. Only the image tiles a moved
+ * sphere or its shadow covered or now covers are traced again.
+ *
+ * Usage:
+ *	java Animate <spheres> <depth> <width> <height> <frames> <output>
+ *		[--move fraction] [--step distance] [--threads n]
+ *		[--leaf-capacity n] [--packet n] [--simd] [--no-tile-cache] [--compare]
+ *		[--light x,y,z ...]
+ *
+ * --move is the fraction of spheres moved per frame (0.01 by default)
+ * and --step the largest distance a sphere moves along each axis.
+ * --no-tile-cache traces every pixel of every frame.
+ * --compare also rebuilds the trees from scratch every frame, checks
+ * the rebuilt scene renders the same image and reports both times.
+ * --light adds a light, as with BatchRender.
+ * Frames are written as with BatchRender, numbered before the file
+ * extension.
+ */
+import java.util.*;
+import java.io.*;
+
+public class Animate {
+	private static final float BOUND = 8.0f;	// spheres stay in the cube randSphere fills
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		RenderMetrics.register();
+		if (args.length < 6) {
+			usage();
+		}
+		int numSpheres = Integer.parseInt(args[0]);
+		int treeDepth = Integer.parseInt(args[1]);
+		int width = Integer.parseInt(args[2]);
+		int height = Integer.parseInt(args[3]);
+		int frames = Integer.parseInt(args[4]);
+		String output = args[5];
+		float fraction = 0.01f;
+		float step = 0.25f;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int leafCapacity = 0;
+		int packet = 1;
+		boolean compare = false;
+		boolean useTileCache = true;
+		ArrayList<LightFrame> lights = new ArrayList<LightFrame>();
+
+		for (int i = 6; i < args.length; i++) {
+			if (args[i].equals("--move") && i + 1 < args.length) {
+				fraction = Float.parseFloat(args[++i]);
+			} else if (args[i].equals("--step") && i + 1 < args.length) {
+				step = Float.parseFloat(args[++i]);
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--leaf-capacity") && i + 1 < args.length) {
+				leafCapacity = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--packet") && i + 1 < args.length) {
+				packet = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--simd")) {
+				RayTraceShadows.leafKernel = LeafKernel.create();
+				System.out.println("Leaf kernel: " + RayTraceShadows.leafKernel.getName());
+			} else if (args[i].equals("--no-tile-cache")) {
+				useTileCache = false;
+			} else if (args[i].equals("--light") && i + 1 < args.length) {
+				lights.add(BatchRender.parseLight(args[++i]));
+			} else if (args[i].equals("--compare")) {
+				compare = true;
+			} else {
+				usage();
+			}
+		}
+
+		Random random = new Random();
+		Scene scene = Scene.random(numSpheres, treeDepth, leafCapacity, false);
+		for (LightFrame light : lights) {
+			scene.addLight(light);
+		}
+		int moves = Math.round(fraction * numSpheres);
+		ParallelRenderer renderer = new ParallelRenderer(threads, packet);
+		FrameWriter writer = new FrameWriter();
+		TileCache cache = useTileCache
+				? new TileCache(scene, width, height, ParallelRenderer.MIN_TILE) : null;
+		for (int frame = 0; frame < frames; frame++) {
+			RenderCounters.resetCounters();
+			long start = System.nanoTime();
+			if (frame > 0) {
+				for (int i = 0; i < moves; i++) {
+					Sphere s = scene.getSphere(random.nextInt(numSpheres));
+					nTuple c = s.getCenter();
+					if (cache != null) {
+						cache.markSphere(s);
+					}
+					scene.moveSphere(s, wander(c.getX(), step, random),
+										wander(c.getY(), step, random),
+										wander(c.getZ(), step, random));
+					if (cache != null) {
+						cache.markSphere(s);
+					}
+				}
+				scene.sortLeaves();
+			}
+			if (RayTraceShadows.leafKernel != null) {
+				scene.packLeaves();
+			}
+			long updated = System.nanoTime();
+			int[] pixels;
+			String traced;
+			if (cache != null) {
+				int tiles = cache.render(scene, renderer);
+				pixels = cache.getPixels().clone();		// the writer keeps its copy
+				traced = tiles + " of " + cache.getTileCount() + " tiles";
+			} else {
+				pixels = renderer.render(scene, width, height);
+				traced = "all tiles";
+			}
+			long done = System.nanoTime();
+			File file = new File(BatchRender.frameName(output, frame, frames));
+			writer.writeAsync(pixels, width, height, file);
+			System.out.printf("%s: moved %d spheres, update %.2f ms, render %.1f ms (%s)%n", file,
+								(frame > 0) ? moves : 0, (updated - start) / 1e6, (done - updated) / 1e6,
+								traced);
+			if (compare) {
+				long rebuildStart = System.nanoTime();
+				Scene rebuilt = rebuild(scene, treeDepth, leafCapacity);
+				long rebuildDone = System.nanoTime();
+				int[] check = renderer.render(rebuilt, width, height);
+				System.out.printf("%s: full rebuild %.2f ms, images %s%n", file,
+									(rebuildDone - rebuildStart) / 1e6,
+									Arrays.equals(pixels, check) ? "match" : "DIFFER");
+			}
+		}
+		renderer.shutdown();
+		writer.close();
+	}
+
+	// Step a coordinate by up to step either way, reflecting off the
+	// edges of the cube
+	private static float wander(float x, float step, Random random) {
+		x += (2.0f * random.nextFloat() - 1.0f) * step;
+		if (x > BOUND) {
+			x = 2.0f * BOUND - x;
+		} else if (x < -BOUND) {
+			x = -2.0f * BOUND - x;
+		}
+		return x;
+	}
+
+	// A fresh scene with the same spheres and lights, added in id order
+	// so every sphere keeps its id
+	private static Scene rebuild(Scene scene, int treeDepth, int leafCapacity) {
+		Scene rebuilt = new Scene(treeDepth, leafCapacity, false);
+		for (Sphere s : scene.getSpheres()) {
+			rebuilt.addSphere(s);
+		}
+		for (int light = 1; light < scene.getLightCount(); light++) {
+			rebuilt.addLight(scene.getLight(light));
+		}
+		rebuilt.sortLeaves();
+		if (RayTraceShadows.leafKernel != null) {
+			rebuilt.packLeaves();
+		}
+		return rebuilt;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java Animate <spheres> <depth> <width> <height> <frames> <output>"
+							+ " [--move fraction] [--step distance] [--threads n]"
+							+ " [--leaf-capacity n] [--packet n] [--simd] [--no-tile-cache] [--compare]"
+							+ " [--light x,y,z ...]");
+		System.exit(1);
+	}
+}
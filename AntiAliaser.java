@@ -0,0 +1,205 @@
+/*
+ * AntiAliaser.java
+ * Description: Adaptive anti-aliasing. Every pixel is first traced
+ * with one ray, as usual, recording which sphere it hit and which
+ * lights the hit was in shadow from. That ray goes through the pixel's
+ * top left corner, so the first-pass samples at a pixel's four corners
+ * are those of the pixel itself and its right, lower and lower right
+ * neighbours. A pixel is refined when two of those are on either side
+ * of an edge, hitting different spheres (or one hitting nothing) or
+ * differing in shadow, and also differ in color by more than the
+ * threshold. Shading across a single sphere is smooth however steep it
+ * gets, and an edge between two spheres of much the same color cannot
+ * be seen, so neither is refined. A refined pixel is cut into
+ * samples x samples cells and a ray traced through each cell's center;
+ * its color is the average of those rays and, counting as one more
+ * sample, the mean of its four corners, which were traced already. So
+ * each refined pixel costs samples^2 more rays (with 1 sample, quincunx
+ * filtering at one extra ray) and every other pixel keeps its color.
+ *
+ * The passes run on a ParallelRenderer's pool, so anti-aliased and
+ * aliased renders share the same threads.
+ */
+import java.util.concurrent.*;
+
+public class AntiAliaser {
+	public static final int MAX_SAMPLES = 8;	// cells along a refined pixel's edge
+	private ForkJoinPool pool;
+	private int samples;
+	private int threshold;			// largest channel difference, 0 to 255, not refined
+	private long refined;			// pixels refined in the last render
+	private long pixels;			// pixels in the last render
+
+	public AntiAliaser(ParallelRenderer renderer, int samples, int threshold) {
+		if (samples < 1 || samples > MAX_SAMPLES) {
+			throw new IllegalArgumentException("Samples must be between 1 and " + MAX_SAMPLES);
+		}
+		this.pool = renderer.getPool();
+		this.samples = samples;
+		this.threshold = threshold;
+	}
+
+	public int getSamples() { return this.samples; }
+
+	public int getThreshold() { return this.threshold; }
+
+	// Fraction of the last render's pixels that were supersampled
+	public double getRefinedFraction() {
+		return (this.pixels == 0) ? 0.0 : (double) this.refined / this.pixels;
+	}
+
+	public long getRefined() { return this.refined; }
+
+	public int[] render(Scene scene, int width, int height) {
+		int[] pixels = new int[width * height];
+		render(scene, pixels, width, height);
+		return pixels;
+	}
+
+	public void render(Scene scene, int[] pixels, int width, int height) {
+		FrameEvent event = new FrameEvent();
+		event.begin();
+		long[] keys = new long[width * height];
+		boolean[] refine = new boolean[width * height];
+		this.pool.invoke(new RowTask(this, scene, pixels, pixels, keys, refine, width, height,
+										0, height, RowTask.TRACE));
+		this.pool.invoke(new RowTask(this, scene, pixels, pixels, keys, refine, width, height,
+										0, height, RowTask.MARK));
+		long count = 0;
+		for (int i = 0; i < refine.length; i++) {
+			if (refine[i]) {
+				count++;
+			}
+		}
+		this.pool.invoke(new RowTask(this, scene, pixels, pixels.clone(), keys, refine, width, height,
+										0, height, RowTask.REFINE));
+		this.refined = count;
+		this.pixels = (long) width * height;
+		event.end();
+		if (event.shouldCommit()) {
+			event.spheres = scene.getStore().size();
+			event.width = width;
+			event.height = height;
+			event.pixels = this.pixels + count * this.samples * this.samples;
+			event.threads = this.pool.getParallelism();
+			event.commit();
+		}
+	}
+
+	// Whether two first-pass samples lie across an edge that shows
+	private boolean differ(int[] pixels, long[] keys, int a, int b) {
+		int p = pixels[a], q = pixels[b];
+		if (keys[a] == keys[b] || p == q) {
+			return false;
+		}
+		return Math.abs(((p >> 16) & 0xff) - ((q >> 16) & 0xff)) > this.threshold
+				|| Math.abs(((p >> 8) & 0xff) - ((q >> 8) & 0xff)) > this.threshold
+				|| Math.abs((p & 0xff) - (q & 0xff)) > this.threshold;
+	}
+
+	// One of the three passes over rows [minV, maxV)
+	private static class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int ROWS = 16;		// rows per task
+		static final int TRACE = 0;		// one ray per pixel
+		static final int MARK = 1;		// find the pixels to refine
+		static final int REFINE = 2;	// supersample them
+		private AntiAliaser aa;
+		private Scene scene;
+		private int[] pixels;
+		private long[] keys;		// hit sphere and shadowed lights of each first-pass sample
+		private boolean[] refine;
+		private int[] first;		// first-pass colors, kept apart while refining
+		private int width, height;
+		private int minV, maxV;
+		private int pass;
+
+		RowTask(AntiAliaser aa, Scene scene, int[] pixels, int[] first, long[] keys,
+				boolean[] refine, int width, int height, int minV, int maxV, int pass) {
+			this.aa = aa;
+			this.scene = scene;
+			this.pixels = pixels;
+			this.first = first;
+			this.keys = keys;
+			this.refine = refine;
+			this.width = width;
+			this.height = height;
+			this.minV = minV;
+			this.maxV = maxV;
+			this.pass = pass;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxV - minV > ROWS) {
+				int medV = (minV + maxV) / 2;
+				invokeAll(new RowTask(aa, scene, pixels, first, keys, refine, width, height,
+										minV, medV, pass),
+							new RowTask(aa, scene, pixels, first, keys, refine, width, height,
+										medV, maxV, pass));
+				return;
+			}
+			for (int v = minV; v < maxV; v++) {
+				for (int u = 0; u < width; u++) {
+					int i = v * width + u;
+					if (pass == TRACE) {
+						trace(i, u, v);
+					} else if (pass == MARK) {
+						refine[i] = crossed(i, u, v);
+					} else if (refine[i]) {
+						pixels[i] = supersample(i, u, v);
+					}
+				}
+			}
+			TraceScratch.flush();
+		}
+
+		// Whether the samples at the corners of pixel (u, v) disagree;
+		// corners past the right and bottom edges are left out
+		private boolean crossed(int i, int u, int v) {
+			boolean right = u + 1 < width, down = v + 1 < height;
+			return (right && aa.differ(pixels, keys, i, i + 1))
+					|| (down && aa.differ(pixels, keys, i, i + width))
+					|| (right && down && (aa.differ(pixels, keys, i, i + width + 1)
+										|| aa.differ(pixels, keys, i + 1, i + width)));
+		}
+
+		private void trace(int i, int u, int v) {
+			TraceScratch scratch = TraceScratch.get();
+			pixels[i] = RayTraceShadows.getRGB(scene, u, v, width, height);
+			keys[i] = ((long) scratch.hitId << 32) | (scratch.hitShadowed & 0xffffffffL);
+		}
+
+		// Average of a ray through the center of each of the pixel's
+		// samples x samples cells and the mean of its corner samples
+		private int supersample(int i, int u, int v) {
+			int n = aa.samples;
+			int r = 0, g = 0, b = 0;
+			RenderCounters counters = TraceScratch.get().counters;
+			counters.beginSamples();
+			for (int sv = 0; sv < n; sv++) {
+				for (int su = 0; su < n; su++) {
+					int rgb = RayTraceShadows.getRGB(scene, u + (su + 0.5f) / n, v + (sv + 0.5f) / n,
+														width, height);
+					r += 4 * ((rgb >> 16) & 0xff);
+					g += 4 * ((rgb >> 8) & 0xff);
+					b += 4 * (rgb & 0xff);
+				}
+			}
+			counters.endSamples();
+			// Corners past the right and bottom edges repeat the nearest one
+			int right = (u + 1 < width) ? 1 : 0;
+			int down = (v + 1 < height) ? width : 0;
+			for (int c = 0; c < 4; c++) {
+				int rgb = first[i + ((c & 1) == 0 ? 0 : right) + ((c & 2) == 0 ? 0 : down)];
+				r += (rgb >> 16) & 0xff;
+				g += (rgb >> 8) & 0xff;
+				b += rgb & 0xff;
+			}
+			int total = 4 * (n * n + 1);
+			int half = total / 2;
+			return 0xff000000 | ((r + half) / total) << 16 | ((g + half) / total) << 8
+					| ((b + half) / total);
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * BVH.java
+ * Description: A bounding volume hierarchy over the spheres in a
+ * SphereStore, built with the surface area heuristic. Unlike the
+ * Quadtree, which bins spheres by their extent on the image plane (or
+ * light plane), the BVH bounds spheres in 3D, so a ray only tests the
+ * spheres whose boxes it actually passes through. Nodes are kept in
+ * flat arrays so the hierarchy scales to millions of spheres.
+ *
+ * "java BVH" checks traversal against testing every sphere, for an
+ * empty store, a single sphere, coincident spheres and a random scene.
+ */
+import java.util.*;
+
+public class BVH {
+	public static final int MAX_DEPTH = 64;		// deeper nodes are made leaves
+	private static final int BINS = 16;			// SAH candidate splits per axis
+	private static final int MAX_LEAF = 4;		// split nodes with more spheres
+	private static final float TRAVERSAL_COST = 1.0f;	// relative to one sphere test
+	private static final float PAD = 1e-4f;		// box padding against rounding
+
+	private SphereStore store;
+	private float[] bounds;		// minX, minY, minZ, maxX, maxY, maxZ per node
+	private int[] first;		// leaf: first index into ids; interior: left child
+	private int[] count;		// leaf: number of spheres, maybe 0; interior: -1
+	private int[] ids;			// sphere ids, grouped by leaf
+	private int nodes;
+
+	public int getNodeCount() { return this.nodes; }
+
+	public BVH(SphereStore store) {
+		this.store = store;
+		int n = store.size();
+		this.ids = new int[n];
+		for (int i = 0; i < n; i++) {
+			this.ids[i] = i;
+		}
+		int capacity = Math.max(1, 2 * n / MAX_LEAF);
+		this.bounds = new float[6 * capacity];
+		this.first = new int[capacity];
+		this.count = new int[capacity];
+		this.nodes = 0;
+
+		float[] centroid = new float[3 * n];
+		for (int i = 0; i < n; i++) {
+			centroid[3*i] = store.getCenterX(i);
+			centroid[3*i + 1] = store.getCenterY(i);
+			centroid[3*i + 2] = store.getCenterZ(i);
+		}
+		build(allocNode(), 0, n, 0, centroid);
+	}
+
+	private int allocNode() {
+		if (this.nodes == this.first.length) {
+			int capacity = 2 * this.nodes;
+			this.bounds = Arrays.copyOf(this.bounds, 6 * capacity);
+			this.first = Arrays.copyOf(this.first, capacity);
+			this.count = Arrays.copyOf(this.count, capacity);
+		}
+		return this.nodes++;
+	}
+
+	// Build node over ids[start, end)
+	private void build(int node, int start, int end, int depth, float[] centroid) {
+		float[] box = sphereBounds(start, end);
+		System.arraycopy(box, 0, this.bounds, 6 * node, 6);
+		int n = end - start;
+		if (n <= MAX_LEAF || depth >= MAX_DEPTH) {
+			makeLeaf(node, start, n);
+			return;
+		}
+
+		// Centroid bounds decide where the bins go
+		float[] cmin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+		float[] cmax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+		for (int i = start; i < end; i++) {
+			int id = this.ids[i];
+			for (int axis = 0; axis < 3; axis++) {
+				cmin[axis] = Math.min(cmin[axis], centroid[3*id + axis]);
+				cmax[axis] = Math.max(cmax[axis], centroid[3*id + axis]);
+			}
+		}
+
+		// Binned surface area heuristic
+		int bestAxis = -1;
+		int bestBin = -1;
+		float bestCost = Float.POSITIVE_INFINITY;
+		int[] binCount = new int[BINS];
+		float[] binBox = new float[6 * BINS];
+		float[] leftArea = new float[BINS];
+		int[] leftCount = new int[BINS];
+		for (int axis = 0; axis < 3; axis++) {
+			float extent = cmax[axis] - cmin[axis];
+			if (extent <= 0.0f) {
+				continue;
+			}
+			Arrays.fill(binCount, 0);
+			for (int b = 0; b < BINS; b++) {
+				emptyBox(binBox, b);
+			}
+			float scale = BINS / extent;
+			for (int i = start; i < end; i++) {
+				int id = this.ids[i];
+				int b = bin(centroid[3*id + axis], cmin[axis], scale);
+				binCount[b]++;
+				growBox(binBox, b, id);
+			}
+
+			// Sweep from the left, then from the right
+			float[] acc = new float[6];
+			emptyBox(acc, 0);
+			int accCount = 0;
+			for (int b = 0; b < BINS - 1; b++) {
+				mergeBox(acc, binBox, b);
+				accCount += binCount[b];
+				leftArea[b] = area(acc);
+				leftCount[b] = accCount;
+			}
+			emptyBox(acc, 0);
+			accCount = 0;
+			for (int b = BINS - 1; b > 0; b--) {
+				mergeBox(acc, binBox, b);
+				accCount += binCount[b];
+				int left = leftCount[b - 1];
+				if (left == 0 || accCount == 0) {
+					continue;
+				}
+				float cost = leftArea[b - 1] * left + area(acc) * accCount;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b - 1;
+				}
+			}
+		}
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide; split by index
+			mid = start + n / 2;
+		} else {
+			float leafCost = area(box) * n;
+			float splitCost = TRAVERSAL_COST * area(box) + bestCost;
+			if (splitCost >= leafCost && n <= 4 * MAX_LEAF) {
+				makeLeaf(node, start, n);
+				return;
+			}
+			float scale = BINS / (cmax[bestAxis] - cmin[bestAxis]);
+			mid = partition(start, end, bestAxis, bestBin, cmin[bestAxis], scale, centroid);
+			if (mid == start || mid == end) {
+				mid = start + n / 2;
+			}
+		}
+
+		int left = allocNode();
+		int right = allocNode();	// always left + 1
+		this.first[node] = left;
+		this.count[node] = -1;
+		build(left, start, mid, depth + 1, centroid);
+		build(right, mid, end, depth + 1, centroid);
+	}
+
+	private void makeLeaf(int node, int start, int n) {
+		this.first[node] = start;
+		this.count[node] = n;
+	}
+
+	// Move ids whose centroid falls in bins [0, splitBin] to the front
+	private int partition(int start, int end, int axis, int splitBin, float min,
+							float scale, float[] centroid) {
+		int i = start;
+		int j = end - 1;
+		while (i <= j) {
+			if (bin(centroid[3*this.ids[i] + axis], min, scale) <= splitBin) {
+				i++;
+			} else {
+				int tmp = this.ids[i];
+				this.ids[i] = this.ids[j];
+				this.ids[j] = tmp;
+				j--;
+			}
+		}
+		return i;
+	}
+
+	private static int bin(float c, float min, float scale) {
+		int b = (int) ((c - min) * scale);
+		return Math.min(Math.max(b, 0), BINS - 1);
+	}
+
+	private float[] sphereBounds(int start, int end) {
+		float[] box = new float[6];
+		emptyBox(box, 0);
+		for (int i = start; i < end; i++) {
+			growBox(box, 0, this.ids[i]);
+		}
+		for (int axis = 0; axis < 3; axis++) {
+			box[axis] -= PAD;
+			box[3 + axis] += PAD;
+		}
+		return box;
+	}
+
+	private static void emptyBox(float[] box, int b) {
+		for (int axis = 0; axis < 3; axis++) {
+			box[6*b + axis] = Float.POSITIVE_INFINITY;
+			box[6*b + 3 + axis] = Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	private void growBox(float[] box, int b, int id) {
+		float r = this.store.getRadius(id);
+		int o = 6 * b;
+		box[o] = Math.min(box[o], this.store.getCenterX(id) - r);
+		box[o + 1] = Math.min(box[o + 1], this.store.getCenterY(id) - r);
+		box[o + 2] = Math.min(box[o + 2], this.store.getCenterZ(id) - r);
+		box[o + 3] = Math.max(box[o + 3], this.store.getCenterX(id) + r);
+		box[o + 4] = Math.max(box[o + 4], this.store.getCenterY(id) + r);
+		box[o + 5] = Math.max(box[o + 5], this.store.getCenterZ(id) + r);
+	}
+
+	private static void mergeBox(float[] acc, float[] boxes, int b) {
+		for (int axis = 0; axis < 3; axis++) {
+			acc[axis] = Math.min(acc[axis], boxes[6*b + axis]);
+			acc[3 + axis] = Math.max(acc[3 + axis], boxes[6*b + 3 + axis]);
+		}
+	}
+
+	private static float area(float[] box) {
+		float dx = box[3] - box[0];
+		float dy = box[4] - box[1];
+		float dz = box[5] - box[2];
+		if (dx < 0.0f || dy < 0.0f || dz < 0.0f) {
+			return 0.0f;
+		}
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	//////////////////////////////////////////////////////////////////
+	//							TRAVERSAL							//
+	//////////////////////////////////////////////////////////////////
+
+	// Closest sphere hit by the ray with t > tMin, or -1. The hit
+	// distance is left in scratch.hitDistance. Uses the same test as
+	// the quadtree loop in RayTraceShadows.getRGB.
+	public int nearestHit(nTuple origin, nTuple dir, float tMin, TraceScratch scratch) {
+		float ox = origin.getX(), oy = origin.getY(), oz = origin.getZ();
+		float dx = dir.getX(), dy = dir.getY(), dz = dir.getZ();
+		float ix = inverse(dx), iy = inverse(dy), iz = inverse(dz);
+		int[] stack = scratch.nodeStack;
+		int top = 0;
+		float closest = Float.POSITIVE_INFINITY;
+		int closestId = -1;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (!(enter(node, ox, oy, oz, ix, iy, iz, tMin, closest) <= closest)) {
+				continue;	// missed, or farther than the closest hit so far
+			}
+			int n = this.count[node];
+			if (n >= 0) {
+				int start = this.first[node];
+				scratch.counters.tested(n);
+				for (int i = start; i < start + n; i++) {
+					int id = this.ids[i];
+					float t = this.store.intersect(ox, oy, oz, dx, dy, dz, id);
+					if (t > tMin && t < closest) {
+						closest = t;
+						closestId = id;
+					}
+				}
+			} else {
+				// Push the farther child first so the nearer one is visited
+				// first; misses come back as NaN and are never pushed
+				int left = this.first[node];
+				int right = left + 1;
+				float tLeft = enter(left, ox, oy, oz, ix, iy, iz, tMin, closest);
+				float tRight = enter(right, ox, oy, oz, ix, iy, iz, tMin, closest);
+				if (tLeft <= tRight) {
+					if (tRight <= closest) stack[top++] = right;
+					if (tLeft <= closest) stack[top++] = left;
+				} else {
+					if (tLeft <= closest) stack[top++] = left;
+					if (tRight <= closest) stack[top++] = right;
+				}
+			}
+		}
+		scratch.hitDistance = closest;
+		return closestId;
+	}
+
+	// Id of some sphere hit by the ray at t > 0, the same test
+	// RayTraceShadows.inShadow applies, or -1 if there is none
+	public int anyHit(nTuple origin, nTuple dir, TraceScratch scratch) {
+		float ox = origin.getX(), oy = origin.getY(), oz = origin.getZ();
+		float dx = dir.getX(), dy = dir.getY(), dz = dir.getZ();
+		float ix = inverse(dx), iy = inverse(dy), iz = inverse(dz);
+		int[] stack = scratch.nodeStack;
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (Float.isNaN(enter(node, ox, oy, oz, ix, iy, iz, 0.0f, Float.POSITIVE_INFINITY))) {
+				continue;
+			}
+			int n = this.count[node];
+			if (n >= 0) {
+				int start = this.first[node];
+				for (int i = start; i < start + n; i++) {
+					if (this.store.intersect(ox, oy, oz, dx, dy, dz, this.ids[i]) > 0.0f) {
+						scratch.counters.tested(i - start + 1);
+						return this.ids[i];
+					}
+				}
+				scratch.counters.tested(n);
+			} else {
+				stack[top++] = this.first[node] + 1;
+				stack[top++] = this.first[node];
+			}
+		}
+		return -1;
+	}
+
+	// Slab test: distance at which the ray enters the node's box within
+	// [tMin, tMax], or NaN if it misses
+	private float enter(int node, float ox, float oy, float oz,
+						float ix, float iy, float iz, float tMin, float tMax) {
+		int o = 6 * node;
+		float t1 = (this.bounds[o] - ox) * ix;
+		float t2 = (this.bounds[o + 3] - ox) * ix;
+		float near = Math.min(t1, t2);
+		float far = Math.max(t1, t2);
+		t1 = (this.bounds[o + 1] - oy) * iy;
+		t2 = (this.bounds[o + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		t1 = (this.bounds[o + 2] - oz) * iz;
+		t2 = (this.bounds[o + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		if (near > far || far < tMin || near > tMax) {
+			return Float.NaN;
+		}
+		return near;
+	}
+
+	// 1/d, nudging zero components so the slab test stays finite
+	private static float inverse(float d) {
+		return 1.0f / (d == 0.0f ? 1e-30f : d);
+	}
+
+	public static void main(String[] args) {
+		boolean ok = true;
+		for (int scene = 0; scene < 4; scene++) {
+			SphereStore store = new SphereStore();
+			String name;
+			if (scene == 0) {
+				name = "empty";
+			} else if (scene == 1) {
+				name = "one sphere";
+				store.add(0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f, 1.0f, RayTraceShadows.LIGHT_FRAME);
+			} else if (scene == 2) {
+				name = "coincident spheres";
+				for (int i = 0; i < 50; i++) {
+					store.add(0.0f, 0.0f, 0.0f, 0.5f + 0.01f * i, 1.0f, 1.0f, 1.0f,
+								RayTraceShadows.LIGHT_FRAME);
+				}
+			} else {
+				name = "random scene";
+				for (int i = 0; i < 5000; i++) {
+					store.add(RayTraceShadows.randSphere(RayTraceShadows.LIGHT_FRAME));
+				}
+			}
+			ok &= check(name, new BVH(store), store);
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	// Compare nearestHit and anyHit with testing every sphere, for rays
+	// from the camera through a grid of image plane points
+	private static boolean check(String name, BVH bvh, SphereStore store) {
+		TraceScratch scratch = TraceScratch.get();
+		nTuple origin = RayTraceShadows.CAMERA;
+		int rays = 0, wrong = 0;
+		for (int v = 0; v < 64; v++) {
+			for (int u = 0; u < 64; u++) {
+				nTuple q = RayTraceShadows.imagePlaneCoord(u, v, 64, 64);
+				nTuple dir = q.subtract(origin).normalize();
+				float closest = Float.POSITIVE_INFINITY;
+				int nearest = -1;
+				boolean any = false;
+				for (int id = 0; id < store.size(); id++) {
+					float t = store.intersect(origin, dir, id);
+					if (t > 0.01f && t < closest) {
+						closest = t;
+						nearest = id;
+					}
+					any |= t > 0.0f;
+				}
+				if (bvh.nearestHit(origin, dir, 0.01f, scratch) != nearest
+						|| (bvh.anyHit(origin, dir, scratch) >= 0) != any) {
+					wrong++;
+				}
+				rays++;
+			}
+		}
+		System.out.printf("%s: %d spheres, %d nodes, %d of %d rays %s%n", name, store.size(),
+							bvh.getNodeCount(), rays - wrong, rays, (wrong == 0) ? "match" : "DIFFER");
+		return wrong == 0;
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * BatchRender.java
+ * Description: Headless entry point. Renders random sphere scenes into
+ * a framebuffer and writes them to disk without opening a window.
+ *
+ * Usage:
+ *	java BatchRender <spheres> <depth> <width> <height> <output>
+ *		[--frames n] [--threads n] [--compare] [--bvh] [--leaf-capacity n]
+ *		[--no-shadow-cache] [--simd] [--packet n] [--progressive step]
+ *		[--scene file] [--save-scene file] [--report file] [--linear]
+ *		[--aa samples] [--aa-threshold t] [--light x,y,z ...]
+ *		[--workers n] [--port p] [--tile-timeout ms] [--stream]
+ *
+ * The output format is picked from the file extension (.png, otherwise
+ * PPM). When more than one frame is rendered, the frame number is
+ * added to the file name. Pixels are traced in parallel on --threads
+ * threads (all cores by default); --compare also renders each frame
+ * serially, checks the two images match and reports the speedup.
+ * --bvh traces through a bounding volume hierarchy instead of the
+ * quadtrees. --leaf-capacity builds adaptive quadtrees whose leaves
+ * split once they hold more than n spheres, with <depth> as the
+ * maximum depth. --no-shadow-cache turns off the per-thread cache of
+ * the last shadowing sphere; otherwise its hit rate is reported.
+ * --simd packs each quadtree leaf into flat arrays and intersects them
+ * with the Vector API kernel, falling back to a scalar kernel unless
+ * run with --add-modules jdk.incubator.vector. --packet traces n x n
+ * pixel blocks (n = 2, 4 or 8) together, sharing quadtree lookups.
+ * --progressive renders coarse-to-fine, starting with one pixel in
+ * every step x step block, and reports each pass as it completes.
+ * --scene loads the spheres from a binary scene file (see SceneFile)
+ * instead of placing <spheres> at random; --save-scene writes each
+ * frame's spheres to one. --report writes each frame's ray and
+ * intersection test counts and quadtree occupancy (see Statistics) as
+ * JSON if the file name ends in .json, otherwise as CSV. --linear
+ * builds full-depth linear quadtrees (see LinearQuadtree) straight from
+ * the sphere arrays, with no object per sphere or leaf. --aa
+ * anti-aliases edges (see AntiAliaser), tracing samples x samples more
+ * rays only in pixels whose corners hit different spheres or differ in
+ * shadow, and also differ by more than t (16 by default, out of 255) in
+ * a color channel; with --compare the cost over an aliased render is
+ * reported instead. Each --light adds a directional light shining from
+ * (x, y, z) to the default one; its shadow tree is built when a frame
+ * first needs it. --workers starts n worker JVMs on this host, splitting
+ * --threads between them, and renders each frame's tiles on them (see
+ * DistributedRenderer); more can be started by hand with RenderWorker
+ * on the port given with --port (or the one printed). A tile a worker
+ * holds for more than --tile-timeout ms (5000 by default) is handed to
+ * another worker, and one holding a tile for twice that is dropped.
+ * --stream writes each band of rows to the output file as soon as it
+ * is traced instead of holding the whole image (see StreamingWriter),
+ * for images too large for the heap; it cannot be combined with
+ * --compare, --aa, --progressive or --workers.
+ */
+import java.util.*;
+import java.io.*;
+
+public class BatchRender {
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		RenderMetrics.register();
+		if (args.length < 5) {
+			usage();
+		}
+		int numSpheres = Integer.parseInt(args[0]);
+		int treeDepth = Integer.parseInt(args[1]);
+		int width = Integer.parseInt(args[2]);
+		int height = Integer.parseInt(args[3]);
+		String output = args[4];
+		int frames = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean compare = false;
+		boolean useBVH = false;
+		boolean linear = false;
+		int leafCapacity = 0;
+		int packet = 1;
+		int progressiveStep = 0;
+		String sceneFile = null;
+		String saveScene = null;
+		String report = null;
+		int aaSamples = 0;
+		int aaThreshold = 16;
+		ArrayList<LightFrame> lights = new ArrayList<LightFrame>();
+		int workers = 0;
+		int port = -1;
+		long tileTimeout = 5000;
+		boolean stream = false;
+
+		for (int i = 5; i < args.length; i++) {
+			if (args[i].equals("--frames") && i + 1 < args.length) {
+				frames = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--compare")) {
+				compare = true;
+			} else if (args[i].equals("--bvh")) {
+				useBVH = true;
+			} else if (args[i].equals("--linear")) {
+				linear = true;
+			} else if (args[i].equals("--leaf-capacity") && i + 1 < args.length) {
+				leafCapacity = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--no-shadow-cache")) {
+				ShadowCache.enabled = false;
+			} else if (args[i].equals("--packet") && i + 1 < args.length) {
+				packet = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--progressive") && i + 1 < args.length) {
+				progressiveStep = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--scene") && i + 1 < args.length) {
+				sceneFile = args[++i];
+			} else if (args[i].equals("--save-scene") && i + 1 < args.length) {
+				saveScene = args[++i];
+			} else if (args[i].equals("--report") && i + 1 < args.length) {
+				report = args[++i];
+			} else if (args[i].equals("--aa") && i + 1 < args.length) {
+				aaSamples = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--aa-threshold") && i + 1 < args.length) {
+				aaThreshold = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--workers") && i + 1 < args.length) {
+				workers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--tile-timeout") && i + 1 < args.length) {
+				tileTimeout = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--stream")) {
+				stream = true;
+			} else if (args[i].equals("--light") && i + 1 < args.length) {
+				lights.add(parseLight(args[++i]));
+			} else if (args[i].equals("--simd")) {
+				RayTraceShadows.leafKernel = LeafKernel.create();
+				System.out.println("Leaf kernel: " + RayTraceShadows.leafKernel.getName());
+			} else {
+				usage();
+			}
+		}
+
+		if (stream && (compare || aaSamples > 0 || progressiveStep > 0 || workers > 0 || port >= 0)) {
+			System.err.println("--stream cannot be combined with --compare, --aa, --progressive"
+								+ " or --workers");
+			usage();
+		}
+
+		ParallelRenderer renderer = new ParallelRenderer(threads, packet);
+		FrameWriter writer = new FrameWriter();
+		AntiAliaser aa = (aaSamples > 0) ? new AntiAliaser(renderer, aaSamples, aaThreshold) : null;
+		DistributedRenderer distributed = null;
+		if (workers > 0 || port >= 0) {
+			distributed = new DistributedRenderer(Math.max(port, 0), treeDepth, leafCapacity, useBVH,
+													linear);
+			distributed.setTileTimeout(tileTimeout);
+			distributed.spawnWorkers(workers, Math.max(threads / Math.max(workers, 1), 1));
+			System.out.println("Render workers connect to port " + distributed.getPort());
+		}
+		for (int frame = 0; frame < frames; frame++) {
+			ShadowCache.resetCounters();
+			RenderCounters.resetCounters();
+			long start = System.nanoTime();
+			Scene scene;
+			if (sceneFile != null && linear) {
+				scene = SceneFile.readLinear(new File(sceneFile), treeDepth);
+			} else if (linear) {
+				scene = Scene.randomLinear(numSpheres, treeDepth);
+			} else if (sceneFile != null) {
+				scene = SceneFile.read(new File(sceneFile), treeDepth, leafCapacity, useBVH);
+			} else {
+				scene = Scene.random(numSpheres, treeDepth, leafCapacity, useBVH);
+			}
+			for (LightFrame light : lights) {
+				scene.addLight(light);
+			}
+			if (RayTraceShadows.leafKernel != null) {
+				scene.packLeaves();
+			}
+			long built = System.nanoTime();
+			File file = new File(frameName(output, frame, frames));
+			int[] pixels = null;
+			if (stream) {
+				StreamingWriter.render(renderer, scene, width, height, file);
+			} else if (distributed != null) {
+				pixels = distributed.render(scene, width, height);
+			} else if (aa != null) {
+				pixels = aa.render(scene, width, height);
+			} else if (progressiveStep > 0) {
+				pixels = renderProgressive(scene, width, height, threads, progressiveStep, built);
+			} else {
+				pixels = renderer.render(scene, width, height);
+			}
+			long done = System.nanoTime();
+			if (!stream) {
+				writer.writeAsync(pixels, width, height, file);
+			}
+			System.out.printf("%s: %d spheres, build %.1f ms, render %.1f ms on %d threads%n", file,
+								scene.getStore().size(), (built - start) / 1e6, (done - built) / 1e6,
+								threads);
+			if (distributed != null) {
+				System.out.printf("%s: rendered on %d workers, %d tiles reassigned%n", file,
+									distributed.getWorkers(), distributed.getReassigned());
+			}
+			if (aa != null) {
+				System.out.printf("%s: anti-aliased %.1f%% of pixels with %d x %d samples%n", file,
+									100.0 * aa.getRefinedFraction(), aaSamples, aaSamples);
+			}
+			if (ShadowCache.enabled && distributed == null) {
+				System.out.printf("%s: shadow cache hit rate %.1f%% of %d shadow tests, %d list tests%n",
+									file, 100.0 * ShadowCache.hitRate(), ShadowCache.totalQueries(),
+									ShadowCache.totalSphereTests());
+			}
+			if (report != null) {
+				Statistics stats = new Statistics(scene);
+				stats.setBuildTime(built - start);
+				stats.setRenderTime(done - built);
+				stats.writeReport(new File(frameName(report, frame, frames)));
+			}
+			if (compare && aa != null) {
+				long aliasedStart = System.nanoTime();
+				renderer.render(scene, width, height);
+				long aliasedDone = System.nanoTime();
+				System.out.printf("%s: aliased render %.1f ms, anti-aliasing costs %.2fx%n", file,
+									(aliasedDone - aliasedStart) / 1e6,
+									(double) (done - built) / (aliasedDone - aliasedStart));
+			} else if (compare) {
+				int[] serial = new int[width * height];
+				long serialStart = System.nanoTime();
+				ParallelRenderer.renderSerial(scene, serial, width, height);
+				long serialDone = System.nanoTime();
+				System.out.printf("%s: serial render %.1f ms, speedup %.2fx, images %s%n", file,
+									(serialDone - serialStart) / 1e6,
+									(double) (serialDone - serialStart) / (done - built),
+									Arrays.equals(pixels, serial) ? "match" : "DIFFER");
+			}
+			if (saveScene != null) {
+				SceneFile.write(scene, new File(frameName(saveScene, frame, frames)));
+			}
+		}
+		renderer.shutdown();
+		if (distributed != null) {
+			distributed.shutdown();
+		}
+		writer.close();
+	}
+
+	private static int[] renderProgressive(Scene scene, int width, int height, int threads,
+											int step, final long start) {
+		ProgressiveRenderer progressive = new ProgressiveRenderer(threads, step);
+		int[] pixels = new int[width * height];
+		progressive.render(scene, pixels, width, height, new ProgressiveRenderer.Listener() {
+			public void passComplete(int[] pixels, int width, int height, int pass, int passes) {
+				System.out.printf("pass %d of %d done at %.1f ms%n", pass, passes,
+									(System.nanoTime() - start) / 1e6);
+			}
+		});
+		progressive.shutdown();
+		return pixels;
+	}
+
+	// Light shining from the direction given as "x,y,z"
+	public static LightFrame parseLight(String direction) {
+		String[] parts = direction.split(",");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("Light direction must be x,y,z: " + direction);
+		}
+		return LightFrame.toward(new nTuple(Float.parseFloat(parts[0]), Float.parseFloat(parts[1]),
+											Float.parseFloat(parts[2])));
+	}
+
+	// Add the frame number before the file extension
+	public static String frameName(String output, int frame, int frames) {
+		if (frames == 1) {
+			return output;
+		}
+		int dot = output.lastIndexOf('.');
+		String number = String.format("_%04d", frame);
+		if (dot < 0 || dot < output.lastIndexOf(File.separatorChar)) {
+			return output + number;
+		}
+		return output.substring(0, dot) + number + output.substring(dot);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java BatchRender <spheres> <depth> <width> <height> <output>"
+							+ " [--frames n] [--threads n] [--compare] [--bvh] [--leaf-capacity n]"
+							+ " [--no-shadow-cache] [--simd] [--packet n] [--progressive step]"
+							+ " [--scene file] [--save-scene file] [--report file] [--linear]"
+							+ " [--aa samples] [--aa-threshold t] [--light x,y,z ...]"
+							+ " [--workers n] [--port p] [--tile-timeout ms] [--stream]");
+		System.exit(1);
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * DistributedRenderer.java
+ * Description: Renders frames on worker JVMs (see RenderWorker) that
+ * connect over local sockets. Each frame's scene is sent to every
+ * worker once, in the binary SceneFile format along with the settings
+ * to build its trees with, and the image is then handed out in square
+ * tiles. Every worker keeps a couple of tiles queued so it never waits
+ * on the network, and the results are copied into the framebuffer as
+ * they arrive.
+ *
+ * A tile held by a worker that disconnects is handed out again at
+ * once; one a worker has held for longer than the tile timeout is also
+ * handed to the next worker asking for work, and whichever copy comes
+ * back first is used. A worker that has owed results for twice the
+ * timeout without sending any (or for the connect timeout, before its
+ * first result of a frame, while it may still be building the trees)
+ * is taken to be hung and is disconnected, so its tiles go to the
+ * others and a frame left with no workers fails rather than waiting
+ * forever. Workers may join at any time, including while a frame is
+ * being rendered.
+ *
+ * Messages are big-endian, as written by DataOutputStream:
+ *	SCENE	frame, width, height, tile, tree depth, leaf capacity,
+ *			BVH and linear flags, extra light count and directions,
+ *			then the scene file
+ *	TILE	frame, tile index
+ *	RESULT	frame, tile index, pixel count, pixels (worker to coordinator)
+ *	BYE		no more frames
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+public class DistributedRenderer {
+	public static final byte SCENE = 1;
+	public static final byte TILE = 2;
+	public static final byte RESULT = 3;
+	public static final byte BYE = 4;
+	public static final int DEFAULT_TILE = 64;		// tile edge in pixels
+	private static final int WINDOW = 2;			// tiles outstanding per worker
+	private static final long POLL_MS = 100;		// how often overdue tiles are looked for
+	private static final long CONNECT_TIMEOUT_MS = 30000;	// longest wait with no workers
+	private static final int STALL_FACTOR = 2;		// tile timeouts before a silent worker is dropped
+
+	private ServerSocket server;
+	private int treeDepth, leafCapacity;
+	private boolean useBVH, linear;
+	private int tile;
+	private long tileTimeout;		// ms a worker may hold a tile before it is handed out again
+	private ArrayList<Process> spawned;
+	private boolean closed;
+	private int workers;			// workers connected now
+	private ArrayList<Link> links = new ArrayList<Link>();	// their connections
+	private Frame frame;			// frame being rendered, or null
+	private int frameNumber;
+	private long reassigned;		// tiles handed out again in the last frame
+
+	// Listen on a loopback port (0 for any free one) for workers, which
+	// build the scenes they are sent with the given tree settings
+	public DistributedRenderer(int port, int treeDepth, int leafCapacity, boolean useBVH,
+								boolean linear) throws IOException {
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.treeDepth = treeDepth;
+		this.leafCapacity = leafCapacity;
+		this.useBVH = useBVH;
+		this.linear = linear;
+		this.tile = DEFAULT_TILE;
+		this.tileTimeout = 5000;
+		this.spawned = new ArrayList<Process>();
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "render-coordinator");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() { return this.server.getLocalPort(); }
+
+	public synchronized int getWorkers() { return this.workers; }
+
+	public synchronized long getReassigned() { return this.reassigned; }
+
+	// Tile edge, a multiple of ParallelRenderer.MIN_TILE
+	public void setTileSize(int tile) {
+		if (tile < ParallelRenderer.MIN_TILE || tile % ParallelRenderer.MIN_TILE != 0) {
+			throw new IllegalArgumentException("Tile size must be a multiple of "
+												+ ParallelRenderer.MIN_TILE);
+		}
+		this.tile = tile;
+	}
+
+	public void setTileTimeout(long millis) {
+		this.tileTimeout = millis;
+	}
+
+	// Start worker JVMs on this host, on the same class path, each
+	// rendering on the given number of threads
+	public void spawnWorkers(int count, int threads) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (int i = 0; i < count; i++) {
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+														"RenderWorker",
+														this.server.getInetAddress().getHostAddress(),
+														Integer.toString(getPort()),
+														"--threads", Integer.toString(threads));
+			builder.inheritIO();
+			this.spawned.add(builder.start());
+		}
+	}
+
+	public int[] render(Scene scene, int width, int height) throws IOException {
+		FrameEvent event = new FrameEvent();
+		event.begin();
+		int number;
+		synchronized (this) {
+			number = ++this.frameNumber;
+		}
+		byte[] message = sceneMessage(number, scene, width, height);
+		Frame f;
+		synchronized (this) {
+			f = new Frame(number, message, width, height, this.tile);
+			this.frame = f;
+			this.reassigned = 0;
+			notifyAll();
+			long idleSince = System.currentTimeMillis();
+			try {
+				while (f.doneCount < f.tiles) {
+					wait(POLL_MS);
+					long now = System.currentTimeMillis();
+					int overdue = f.requeueOverdue(now, this.tileTimeout);
+					if (overdue > 0) {
+						this.reassigned += overdue;
+						notifyAll();
+					}
+					for (Link link : new ArrayList<Link>(this.links)) {
+						if (link.stalled(now, STALL_FACTOR * this.tileTimeout)) {
+							link.lose();
+						}
+					}
+					if (this.workers > 0) {
+						idleSince = now;
+					} else if (now - idleSince > CONNECT_TIMEOUT_MS) {
+						throw new IOException("No render workers connected to port " + getPort());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for render workers");
+			} finally {
+				this.frame = null;
+			}
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.spheres = scene.getStore().size();
+			event.width = width;
+			event.height = height;
+			event.pixels = (long) width * height;
+			event.threads = getWorkers();
+			event.commit();
+		}
+		return f.pixels;
+	}
+
+	// Tell the workers there are no more frames and wait for the ones
+	// started here to exit
+	public void shutdown() throws IOException {
+		synchronized (this) {
+			this.closed = true;
+			notifyAll();
+		}
+		this.server.close();
+		for (Process p : this.spawned) {
+			try {
+				if (!p.waitFor(5, java.util.concurrent.TimeUnit.SECONDS)) {
+					p.destroy();
+				}
+			} catch (InterruptedException e) {
+				p.destroy();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// The SCENE message for a frame, built once and sent to every worker
+	private byte[] sceneMessage(int number, Scene scene, int width, int height) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SCENE);
+		out.writeInt(number);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(this.tile);
+		out.writeInt(this.treeDepth);
+		out.writeInt(this.leafCapacity);
+		out.writeBoolean(this.useBVH);
+		out.writeBoolean(this.linear);
+		out.writeInt(scene.getLightCount() - 1);
+		for (int light = 1; light < scene.getLightCount(); light++) {
+			nTuple dir = scene.getLight(light).getDirection();
+			out.writeFloat(dir.getX());
+			out.writeFloat(dir.getY());
+			out.writeFloat(dir.getZ());
+		}
+		SceneFile.write(scene, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void accept() {
+		while (true) {
+			Socket socket;
+			try {
+				socket = this.server.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				return;		// closed
+			}
+			Link link = new Link(socket);
+			synchronized (this) {
+				this.workers++;
+				this.links.add(link);
+				notifyAll();
+			}
+			Thread sender = new Thread(new Runnable() {
+				public void run() {
+					link.send();
+				}
+			}, "render-sender-" + socket.getPort());
+			Thread receiver = new Thread(new Runnable() {
+				public void run() {
+					link.receive();
+				}
+			}, "render-receiver-" + socket.getPort());
+			sender.setDaemon(true);
+			receiver.setDaemon(true);
+			sender.start();
+			receiver.start();
+		}
+	}
+
+	// Tiles of one frame and which of them are done
+	private static class Frame {
+		private int number;
+		private byte[] message;			// SCENE message
+		private int width, height, tile;
+		private int across, tiles;
+		private int[] pixels;
+		private boolean[] done;
+		private int doneCount;
+		private ArrayDeque<Integer> pending;	// tiles waiting for a worker
+		private boolean[] queued;		// in pending
+		private long[] handedOut;		// when each was last handed out, 0 if not since queued
+
+		Frame(int number, byte[] message, int width, int height, int tile) {
+			this.number = number;
+			this.message = message;
+			this.width = width;
+			this.height = height;
+			this.tile = tile;
+			this.across = (width + tile - 1) / tile;
+			this.tiles = this.across * ((height + tile - 1) / tile);
+			this.pixels = new int[width * height];
+			this.done = new boolean[this.tiles];
+			this.pending = new ArrayDeque<Integer>();
+			this.queued = new boolean[this.tiles];
+			this.handedOut = new long[this.tiles];
+			for (int t = 0; t < this.tiles; t++) {
+				this.pending.add(t);
+				this.queued[t] = true;
+			}
+		}
+
+		// Next tile to hand out, or -1
+		int take(long now) {
+			while (!this.pending.isEmpty()) {
+				int t = this.pending.poll();
+				this.queued[t] = false;
+				if (!this.done[t]) {
+					this.handedOut[t] = now;
+					return t;
+				}
+			}
+			return -1;
+		}
+
+		// Put a tile back at the front of the queue unless it's done
+		void requeue(int t) {
+			if (!this.done[t] && !this.queued[t]) {
+				this.pending.addFirst(t);
+				this.queued[t] = true;
+				this.handedOut[t] = 0;
+			}
+		}
+
+		// Queue the tiles held longer than timeout, returning how many
+		int requeueOverdue(long now, long timeout) {
+			int count = 0;
+			for (int t = 0; t < this.tiles; t++) {
+				if (this.handedOut[t] > 0 && now - this.handedOut[t] > timeout && !this.done[t]) {
+					requeue(t);
+					count++;
+				}
+			}
+			return count;
+		}
+
+		// Copy in a tile's pixels, unless another worker got there first
+		void complete(int t, int[] tilePixels) throws IOException {
+			if (this.done[t]) {
+				return;
+			}
+			int u0 = (t % this.across) * this.tile, v0 = (t / this.across) * this.tile;
+			int w = Math.min(u0 + this.tile, this.width) - u0;
+			int h = Math.min(v0 + this.tile, this.height) - v0;
+			if (tilePixels.length != w * h) {
+				throw new IOException("Tile " + t + " came back with " + tilePixels.length + " pixels");
+			}
+			for (int row = 0; row < h; row++) {
+				System.arraycopy(tilePixels, row * w, this.pixels, (v0 + row) * this.width + u0, w);
+			}
+			this.done[t] = true;
+			this.doneCount++;
+		}
+	}
+
+	// One worker's connection. The sender thread ships scenes and tiles,
+	// the receiver thread collects results; both share the coordinator's
+	// lock.
+	private class Link {
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+		private ArrayList<Integer> outstanding = new ArrayList<Integer>();	// tiles of frame shipped
+		private int shipped = -1;		// frame whose scene the worker has
+		private boolean answered;		// has sent a result for that frame
+		private long owedSince;			// since when it has owed results and sent none, 0 if it owes none
+		private boolean lost;
+
+		Link(Socket socket) {
+			this.socket = socket;
+		}
+
+		void send() {
+			DistributedRenderer coordinator = DistributedRenderer.this;
+			try {
+				this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+				while (true) {
+					Frame f;
+					int[] tiles;
+					boolean newScene;
+					synchronized (coordinator) {
+						while (!closed && !this.lost && !hasWork()) {
+							coordinator.wait();
+						}
+						if (closed || this.lost) {
+							break;
+						}
+						f = frame;
+						newScene = (f.number != this.shipped);
+						if (newScene) {
+							this.outstanding.clear();
+							this.shipped = f.number;
+							this.answered = false;
+						}
+						long now = System.currentTimeMillis();
+						tiles = new int[Math.max(WINDOW - this.outstanding.size(), 0)];
+						int count = 0;
+						while (count < tiles.length) {
+							int t = f.take(now);
+							if (t < 0) {
+								break;
+							}
+							tiles[count++] = t;
+							this.outstanding.add(t);
+							if (this.owedSince == 0) {
+								this.owedSince = now;
+							}
+						}
+						tiles = Arrays.copyOf(tiles, count);
+					}
+					if (newScene) {
+						this.out.write(f.message);
+					}
+					for (int t : tiles) {
+						this.out.writeByte(TILE);
+						this.out.writeInt(f.number);
+						this.out.writeInt(t);
+					}
+					this.out.flush();
+				}
+				if (closed) {
+					this.out.writeByte(BYE);
+					this.out.flush();
+				}
+			} catch (IOException e) {
+				// handled by lose
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				lose();
+			}
+		}
+
+		// Whether there is a scene to ship or room for another tile; call
+		// with the coordinator's lock held
+		private boolean hasWork() {
+			if (frame == null) {
+				return false;
+			}
+			return frame.number != this.shipped
+					|| (this.outstanding.size() < WINDOW && !frame.pending.isEmpty());
+		}
+
+		// Whether the worker has owed results for longer than limit, or
+		// the connect timeout if it may still be building the frame's
+		// trees; call with the coordinator's lock held
+		boolean stalled(long now, long limit) {
+			if (this.lost || this.owedSince == 0) {
+				return false;
+			}
+			if (!this.answered) {
+				limit = Math.max(limit, CONNECT_TIMEOUT_MS);
+			}
+			return now - this.owedSince > limit;
+		}
+
+		void receive() {
+			DistributedRenderer coordinator = DistributedRenderer.this;
+			try {
+				this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+				while (true) {
+					if (this.in.readByte() != RESULT) {
+						throw new IOException("Unexpected message from render worker");
+					}
+					int number = this.in.readInt();
+					int t = this.in.readInt();
+					byte[] bytes = new byte[4 * this.in.readInt()];
+					this.in.readFully(bytes);
+					int[] tilePixels = new int[bytes.length / 4];
+					java.nio.ByteBuffer.wrap(bytes).asIntBuffer().get(tilePixels);
+					synchronized (coordinator) {
+						if (frame != null && frame.number == number && number == this.shipped) {
+							this.outstanding.remove(Integer.valueOf(t));
+							this.answered = true;
+							frame.complete(t, tilePixels);
+						}
+						this.owedSince = this.outstanding.isEmpty() ? 0 : System.currentTimeMillis();
+						coordinator.notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				// disconnected
+			} finally {
+				lose();
+			}
+		}
+
+		// Give the worker's tiles to the others and drop the connection
+		private void lose() {
+			DistributedRenderer coordinator = DistributedRenderer.this;
+			synchronized (coordinator) {
+				if (this.lost) {
+					return;
+				}
+				this.lost = true;
+				workers--;
+				links.remove(this);
+				if (frame != null && frame.number == this.shipped) {
+					for (int t : this.outstanding) {
+						frame.requeue(t);
+					}
+				}
+				this.outstanding.clear();
+				coordinator.notifyAll();
+			}
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * FrameEvent.java
+ * Description: Flight Recorder event for one rendered frame, or the
+ * dirty part of one.
+ */
+import jdk.jfr.*;
+
+@Name("raytrace.Frame")
+@Label("Frame")
+@Category("Ray Tracer")
+@Description("Rendering a frame")
+public class FrameEvent extends Event {
+	@Label("Spheres")
+	public int spheres;
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	@Label("Pixels Traced")
+	public long pixels;
+
+	@Label("Threads")
+	public int threads;
+}
@@ -0,0 +1,114 @@
+/*
+ * FrameWriter.java
+ * Description: Writes rendered framebuffers to disk as PPM or PNG
+ * images. Encoding happens on a background thread so the renderer can
+ * start on the next frame while the previous one is being written.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import javax.imageio.ImageIO;
+
+public class FrameWriter {
+	private static final int MAX_PENDING = 2;	// frames held in memory awaiting encoding
+	private ExecutorService writer;
+	private ArrayList<Future<?>> pending;
+
+	public FrameWriter() {
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "FrameWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.pending = new ArrayList<Future<?>>();
+	}
+
+	// Queue a frame to be written; the pixel array must not be reused
+	// by the caller afterwards. Blocks if the writer is too far behind.
+	public synchronized void writeAsync(final int[] pixels, final int width,
+										final int height, final File file) throws IOException {
+		while (this.pending.size() >= MAX_PENDING) {
+			await(this.pending.remove(0));
+		}
+		this.pending.add(this.writer.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				write(pixels, width, height, file);
+				return null;
+			}
+		}));
+	}
+
+	// Wait for every queued frame to be written, then stop the thread
+	public void close() throws IOException {
+		this.writer.shutdown();
+		synchronized (this) {
+			while (!this.pending.isEmpty()) {
+				await(this.pending.remove(0));
+			}
+		}
+	}
+
+	private static void await(Future<?> frame) throws IOException {
+		try {
+			frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing frame");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not write frame", e.getCause());
+		}
+	}
+
+	// Pick the image format from the file extension
+	public static void write(int[] pixels, int width, int height, File file) throws IOException {
+		if (file.getName().toLowerCase().endsWith(".png")) {
+			writePNG(pixels, width, height, file);
+		} else {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				writePPM(pixels, width, height, out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	// Binary (P6) PPM
+	public static void writePPM(int[] pixels, int width, int height, OutputStream out) throws IOException {
+		out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+		byte[] row = new byte[3 * width];
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				int rgb = pixels[offset + x];
+				row[3*x] = (byte) (rgb >> 16);
+				row[3*x + 1] = (byte) (rgb >> 8);
+				row[3*x + 2] = (byte) rgb;
+			}
+			out.write(row);
+		}
+		out.flush();
+	}
+
+	public static void writePNG(int[] pixels, int width, int height, File file) throws IOException {
+		if (!ImageIO.write(image(pixels, width, height), "png", file)) {
+			throw new IOException("No PNG encoder available");
+		}
+	}
+
+	public static void writePNG(int[] pixels, int width, int height, OutputStream out) throws IOException {
+		if (!ImageIO.write(image(pixels, width, height), "png", out)) {
+			throw new IOException("No PNG encoder available");
+		}
+		out.flush();
+	}
+
+	private static BufferedImage image(int[] pixels, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		return image;
+	}
+}
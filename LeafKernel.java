@@ -0,0 +1,32 @@
+/*
+ * LeafKernel.java
+ * Description: Intersects one ray with every sphere in a LeafPack.
+ * Both methods use the same arithmetic as SphereStore.intersect, so any
+ * implementation gives the same answers as the list walk.
+ */
+public abstract class LeafKernel {
+	// Index in the pack of the closest sphere hit at t > tMin, or -1.
+	// The hit distance is left in scratch.hitDistance. Ties go to the
+	// earlier sphere, as in the list walk.
+	public abstract int nearest(LeafPack pack, float ox, float oy, float oz,
+								float dx, float dy, float dz, float tMin,
+								TraceScratch scratch);
+
+	// Index in the pack of the first sphere hit at t > 0, or -1
+	public abstract int anyHit(LeafPack pack, float ox, float oy, float oz,
+								float dx, float dy, float dz);
+
+	public abstract String getName();
+
+	// The Vector API kernel when jdk.incubator.vector is available
+	// (run with --add-modules jdk.incubator.vector) and its vectors fit
+	// LeafPack's padding, otherwise scalar
+	public static LeafKernel create() {
+		try {
+			Class<?> simd = Class.forName("SimdLeafKernel");
+			return (LeafKernel) simd.getDeclaredConstructor().newInstance();
+		} catch (Throwable t) {		// missing class or module, or vectors too wide
+			return new ScalarLeafKernel();
+		}
+	}
+}
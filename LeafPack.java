@@ -0,0 +1,44 @@
+/*
+ * LeafPack.java
+ * Description: The spheres of one quadtree leaf copied into a single
+ * float array, laid out as blocks of center x, center y, center z and
+ * radius squared. The blocks are padded to a multiple of the widest
+ * vector, so a LeafKernel can test several spheres per instruction
+ * without a tail loop. Padding lanes hold NaN and never hit.
+ */
+import java.util.*;
+
+public class LeafPack {
+	public static final int ALIGN = 16;		// floats in the widest vector
+	private int[] ids;			// sphere ids, in leaf list order
+	private float[] data;		// cx[stride], cy[stride], cz[stride], r2[stride]
+	private int size;
+	private int stride;
+
+	public int size() { return this.size; }
+
+	public int getStride() { return this.stride; }
+
+	public float[] getData() { return this.data; }
+
+	public int getId(int index) { return this.ids[index]; }
+
+	public LeafPack(SphereList list, SphereStore store) {
+		this.size = (list == null) ? 0 : list.length();
+		this.stride = (this.size + ALIGN - 1) / ALIGN * ALIGN;
+		this.ids = new int[this.size];
+		this.data = new float[4 * this.stride];
+		Arrays.fill(this.data, Float.NaN);
+		int i = 0;
+		while (list != null) {
+			int id = list.getId();
+			this.ids[i] = id;
+			this.data[i] = store.getCenterX(id);
+			this.data[this.stride + i] = store.getCenterY(id);
+			this.data[2 * this.stride + i] = store.getCenterZ(id);
+			this.data[3 * this.stride + i] = store.getRadius2(id);
+			list = list.getNext();
+			i++;
+		}
+	}
+}
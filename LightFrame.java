@@ -0,0 +1,83 @@
+/*
+ * LightFrame.java
+ * Description: The coordinate system defined by a light direction and
+ * two more basis vectors. The inverse of the basis matrix is computed
+ * once, so changing a point into light coordinates is a 3x3 product
+ * rather than a Gauss-Jordan elimination per point.
+ */
+public class LightFrame {
+	private nTuple u1, u2, u3;		// basis, u1 points at the light
+	private float m00, m01, m02;	// inverse of the matrix [u1 u2 u3]
+	private float m10, m11, m12;
+	private float m20, m21, m22;
+
+	public nTuple getDirection() { return this.u1; }
+
+	public nTuple getBasis2() { return this.u2; }
+
+	public nTuple getBasis3() { return this.u3; }
+
+	public LightFrame(nTuple u1, nTuple u2, nTuple u3) {
+		this.u1 = u1;
+		this.u2 = u2;
+		this.u3 = u3;
+
+		// Columns of the basis matrix, in double to keep the inverse accurate
+		double a = u1.getX(), b = u2.getX(), c = u3.getX();
+		double d = u1.getY(), e = u2.getY(), f = u3.getY();
+		double g = u1.getZ(), h = u2.getZ(), i = u3.getZ();
+		double det = a * (e*i - f*h) - b * (d*i - f*g) + c * (d*h - e*g);
+		if (Math.abs(det) < 1e-12) {
+			throw new IllegalArgumentException("Light basis vectors are not independent");
+		}
+
+		// Inverse = adjugate / determinant
+		this.m00 = (float) ((e*i - f*h) / det);
+		this.m01 = (float) ((c*h - b*i) / det);
+		this.m02 = (float) ((b*f - c*e) / det);
+		this.m10 = (float) ((f*g - d*i) / det);
+		this.m11 = (float) ((a*i - c*g) / det);
+		this.m12 = (float) ((c*d - a*f) / det);
+		this.m20 = (float) ((d*h - e*g) / det);
+		this.m21 = (float) ((b*g - a*h) / det);
+		this.m22 = (float) ((a*e - b*d) / det);
+	}
+
+	// Coordinates of p in this frame, written to dest
+	public nTuple toLight(nTuple p, nTuple dest) {
+		float x = p.getX();
+		float y = p.getY();
+		float z = p.getZ();
+		return dest.set(m00 * x + m01 * y + m02 * z,
+						m10 * x + m11 * y + m12 * z,
+						m20 * x + m21 * y + m22 * z);
+	}
+
+	public nTuple toLight(nTuple p) {
+		return toLight(p, new nTuple());
+	}
+
+	// Frame of a light shining from the given direction, completed with
+	// two perpendicular unit vectors
+	public static LightFrame toward(nTuple direction) {
+		if (direction.dot(direction) == 0.0f) {
+			throw new IllegalArgumentException("Light direction is zero");
+		}
+		nTuple u1 = direction.normalize();
+		float x = u1.getX(), y = u1.getY(), z = u1.getZ();
+		// Cross with the axis u1 is least aligned with
+		nTuple u2;
+		if (Math.abs(x) <= Math.abs(y) && Math.abs(x) <= Math.abs(z)) {
+			u2 = new nTuple(0.0f, z, -y);
+		} else if (Math.abs(y) <= Math.abs(z)) {
+			u2 = new nTuple(-z, 0.0f, x);
+		} else {
+			u2 = new nTuple(y, -x, 0.0f);
+		}
+		u2 = u2.normalize();
+		nTuple u3 = new nTuple(y * u2.getZ() - z * u2.getY(),
+								z * u2.getX() - x * u2.getZ(),
+								x * u2.getY() - y * u2.getX());
+		return new LightFrame(u1, u2, u3);
+	}
+}
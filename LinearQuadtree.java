@@ -0,0 +1,205 @@
+/*
+ * LinearQuadtree.java
+ * Description: A full-depth quadtree stored without node objects. The
+ * leaves are numbered by Morton code, interleaving the bits of their
+ * column and row, so each node's leaves are contiguous and in the same
+ * order as the object tree's ll, lr, ul, ur children. Leaf contents are
+ * kept CSR style: the sphere ids of leaf c are ids[offsets[c]] up to
+ * ids[offsets[c + 1]].
+ *
+ * The split lines are the same float medians the object tree computes
+ * node by node, and a sphere lands in exactly the leaves addSphere
+ * would put it in, newest first, so tracing through either tree gives
+ * the same image. A tree can also be built in the u2-u3 plane of any
+ * other light, for scenes lit by more than one.
+ */
+public class LinearQuadtree {
+	public static final int MAX_LEVEL = 13;		// 4^13 leaves
+	private int level;
+	private int side;			// leaves along each edge, 2^level
+	private float[] xs, ys;		// split lines; leaf column i spans xs[i] to xs[i + 1]
+	private int[] offsets;		// start of each leaf's ids, by Morton code
+	private int[] ids;
+
+	public int getLevel() { return this.level; }
+
+	public int getLeafCount() { return this.offsets.length - 1; }
+
+	public int[] getIds() { return this.ids; }
+
+	// First and one past the last index into getIds of a leaf's spheres
+	public int getStart(int leaf) { return this.offsets[leaf]; }
+
+	public int getEnd(int leaf) { return this.offsets[leaf + 1]; }
+
+	public int getCount(int leaf) { return this.offsets[leaf + 1] - this.offsets[leaf]; }
+
+	// Build over every sphere in the store, by its screen bounds or, with
+	// shadow set, its bounds in the light's u2-u3 plane
+	public LinearQuadtree(float minX, float minY, float maxX, float maxY, int level,
+							float camZ, SphereStore store, boolean shadow) {
+		this(minX, minY, maxX, maxY, level, camZ, store, shadow, null);
+	}
+
+	// Build over every sphere in the store by its bounds in the u2-u3
+	// plane of the given light
+	public LinearQuadtree(float minX, float minY, float maxX, float maxY, int level,
+							SphereStore store, LightFrame light) {
+		this(minX, minY, maxX, maxY, level, 0.0f, store, true, light);
+	}
+
+	private LinearQuadtree(float minX, float minY, float maxX, float maxY, int level,
+							float camZ, SphereStore store, boolean shadow, LightFrame light) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("Level must be between 0 and " + MAX_LEVEL);
+		}
+		this.level = level;
+		this.side = 1 << level;
+		this.xs = new float[this.side + 1];
+		this.ys = new float[this.side + 1];
+		this.xs[0] = minX;
+		this.xs[this.side] = maxX;
+		this.ys[0] = minY;
+		this.ys[this.side] = maxY;
+		splitLines(this.xs, 0, this.side);
+		splitLines(this.ys, 0, this.side);
+
+		// Leaf rectangle of each sphere, four 16 bit cell indices packed
+		// in a long, then counts, offsets and ids
+		int n = store.size();
+		long[] cells = new long[n];
+		float[] bounds = new float[4];
+		nTuple center = new nTuple();
+		nTuple coords = new nTuple();
+		this.offsets = new int[this.side * this.side + 1];
+		for (int id = 0; id < n; id++) {
+			if (light != null) {
+				float r = store.getRadius(id);
+				center.set(store.getCenterX(id), store.getCenterY(id), store.getCenterZ(id));
+				light.toLight(center, coords);
+				bounds[0] = coords.getY() - r;
+				bounds[1] = coords.getZ() - r;
+				bounds[2] = coords.getY() + r;
+				bounds[3] = coords.getZ() + r;
+			} else if (shadow) {
+				float r = store.getRadius(id);
+				bounds[0] = store.getShadowY(id) - r;
+				bounds[1] = store.getShadowZ(id) - r;
+				bounds[2] = store.getShadowY(id) + r;
+				bounds[3] = store.getShadowZ(id) + r;
+			} else {
+				Quadtree.screenBounds(store.getCenterX(id), store.getCenterY(id),
+										store.getCenterZ(id), store.getRadius(id), camZ, bounds, 0);
+			}
+			int i1 = firstCell(this.xs, bounds[0]);
+			int i2 = lastCell(this.xs, bounds[2]);
+			int j1 = firstCell(this.ys, bounds[1]);
+			int j2 = lastCell(this.ys, bounds[3]);
+			if (i1 > i2 || j1 > j2) {
+				cells[id] = -1;		// in no leaf
+				continue;
+			}
+			cells[id] = ((long) i1 << 48) | ((long) i2 << 32) | ((long) j1 << 16) | j2;
+			for (int j = j1; j <= j2; j++) {
+				for (int i = i1; i <= i2; i++) {
+					this.offsets[morton(i, j) + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < this.side * this.side; c++) {
+			this.offsets[c + 1] += this.offsets[c];
+		}
+		this.ids = new int[this.offsets[this.side * this.side]];
+		int[] next = new int[this.side * this.side];
+		System.arraycopy(this.offsets, 0, next, 0, next.length);
+		// Newest first, the order the object tree's lists are in
+		for (int id = n - 1; id >= 0; id--) {
+			long c = cells[id];
+			if (c < 0) {
+				continue;
+			}
+			int i1 = (int) (c >>> 48), i2 = (int) (c >>> 32) & 0xffff;
+			int j1 = (int) (c >>> 16) & 0xffff, j2 = (int) c & 0xffff;
+			for (int j = j1; j <= j2; j++) {
+				for (int i = i1; i <= i2; i++) {
+					this.ids[next[morton(i, j)]++] = id;
+				}
+			}
+		}
+	}
+
+	// Leaf containing a point, found the way Quadtree.getLeaf walks down
+	// but by binary search over the split lines
+	public int getLeaf(float x, float y) {
+		return morton(cellAt(this.xs, x), cellAt(this.ys, y));
+	}
+
+	// Fill in the medians between lines[lo] and lines[hi] as the object
+	// tree's subdivide computes them
+	private static void splitLines(float[] lines, int lo, int hi) {
+		if (hi - lo < 2) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		lines[mid] = 0.5f * (lines[lo] + lines[hi]);
+		splitLines(lines, lo, mid);
+		splitLines(lines, mid, hi);
+	}
+
+	// insert sends a sphere left of a split when its low bound is below
+	// the split and right when its high bound is at or past it, so it
+	// reaches cell i when low < lines[i + 1] and high >= lines[i], for
+	// whichever of those lines are splits. Both tests fail on NaN.
+	private int firstCell(float[] lines, float low) {
+		int lo = 0, hi = this.side - 1;		// first cell with low < lines[i + 1]
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (low < lines[mid + 1]) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	private int lastCell(float[] lines, float high) {
+		int lo = 0, hi = this.side - 1;		// last cell with high >= lines[i]
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (high >= lines[mid]) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	// Quadtree.getLeaf goes to the low child only when min <= p < median
+	private int cellAt(float[] lines, float p) {
+		int lo = 0, hi = this.side;
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if (lines[lo] <= p && p < lines[mid]) {
+				hi = mid;
+			} else {
+				lo = mid;
+			}
+		}
+		return lo;
+	}
+
+	// Interleave the bits of column i and row j, column bits lowest
+	private static int morton(int i, int j) {
+		return spread(i) | (spread(j) << 1);
+	}
+
+	private static int spread(int v) {
+		v = (v | (v << 8)) & 0x00ff00ff;
+		v = (v | (v << 4)) & 0x0f0f0f0f;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
+}
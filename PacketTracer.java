@@ -0,0 +1,203 @@
+/*
+ * PacketTracer.java
+ * Description: Traces square blocks of neighbouring pixels together.
+ * When a whole block falls in one quadtree leaf, the leaf is looked up
+ * once and its sphere list walked once for all of the block's rays.
+ * Shadow rays are grouped by shadow tree leaf the same way. Blocks that
+ * straddle a leaf boundary are split into quadrants, down to single
+ * pixels traced through getRGB. Each ray sees the same spheres in the
+ * same order as the per-pixel path, so the image is identical. Scenes
+ * lit by more than one light are traced pixel by pixel.
+ */
+public class PacketTracer {
+	public static final int MAX_SIZE = 8;		// largest block edge in pixels
+	public static final int MAX_RAYS = MAX_SIZE * MAX_SIZE;
+
+	// Trace the block of pixels [u0, u1) x [v0, v1), at most MAX_SIZE
+	// on a side
+	public static void traceBlock(Scene scene, int[] pixels, int width, int height,
+									int u0, int v0, int u1, int v1) {
+		traceBlock(scene, pixels, 0, width, height, u0, v0, u1, v1);
+	}
+
+	// Same, into a framebuffer that starts at row firstRow of the image
+	public static void traceBlock(Scene scene, int[] pixels, int firstRow, int width, int height,
+									int u0, int v0, int u1, int v1) {
+		if (u0 >= u1 || v0 >= v1) {
+			return;
+		}
+		Quadtree tree = scene.getTree();
+		if ((u1 - u0 == 1 && v1 - v0 == 1) || tree == null || scene.getLightCount() > 1) {
+			for (int v = v0; v < v1; v++) {
+				for (int u = u0; u < u1; u++) {
+					pixels[(v - firstRow) * width + u] = RayTraceShadows.getRGB(scene, u, v, width, height);
+				}
+			}
+			return;
+		}
+
+		TraceScratch scratch = TraceScratch.get();
+		Quadtree leaf = leafAt(tree, u0, v0, width, height, scratch);
+		if (leaf != leafAt(tree, u1 - 1, v0, width, height, scratch)
+				|| leaf != leafAt(tree, u0, v1 - 1, width, height, scratch)
+				|| leaf != leafAt(tree, u1 - 1, v1 - 1, width, height, scratch)) {
+			int medU = (u1 - u0 > 1) ? (u0 + u1) / 2 : u1;
+			int medV = (v1 - v0 > 1) ? (v0 + v1) / 2 : v1;
+			traceBlock(scene, pixels, firstRow, width, height, u0, v0, medU, medV);
+			traceBlock(scene, pixels, firstRow, width, height, medU, v0, u1, medV);
+			traceBlock(scene, pixels, firstRow, width, height, u0, medV, medU, v1);
+			traceBlock(scene, pixels, firstRow, width, height, medU, medV, u1, v1);
+			return;
+		}
+
+		// Primary rays: one direction per pixel, all from the camera
+		nTuple p = RayTraceShadows.CAMERA;
+		float[] dx = scratch.packetDX, dy = scratch.packetDY, dz = scratch.packetDZ;
+		float[] closest = scratch.packetT;
+		int[] hit = scratch.packetHit;
+		int[] tests = scratch.packetTests;
+		int n = 0;
+		for (int v = v0; v < v1; v++) {
+			for (int u = u0; u < u1; u++) {
+				nTuple q = RayTraceShadows.imagePlaneCoord(u, v, width, height, scratch.imagePoint);
+				nTuple dir = q.subtract(p, scratch.direction).normalize(scratch.direction);
+				dx[n] = dir.getX();
+				dy[n] = dir.getY();
+				dz[n] = dir.getZ();
+				closest[n] = Float.POSITIVE_INFINITY;
+				hit[n] = -1;
+				n++;
+			}
+		}
+
+		// One walk of the leaf's list for the whole packet
+		SphereStore store = scene.getStore();
+		float px = p.getX(), py = p.getY(), pz = p.getZ();
+		// In a sorted leaf, stop once no ray can find a closer hit
+		boolean sorted = leaf.isSorted();
+		float farthest = Float.POSITIVE_INFINITY;
+		int length = 0;
+		for (SphereList list = leaf.getSphereList(); list != null; list = list.getNext()) {
+			if (sorted && list.getKey() >= farthest) {
+				break;
+			}
+			int id = list.getId();
+			farthest = 0.0f;
+			for (int i = 0; i < n; i++) {
+				float t = store.intersect(px, py, pz, dx[i], dy[i], dz[i], id);
+				if (t > 0.01f && t < closest[i]) {
+					closest[i] = t;
+					hit[i] = id;
+				}
+				farthest = Math.max(farthest, closest[i]);
+			}
+			length++;
+		}
+		for (int i = 0; i < n; i++) {
+			tests[i] = length;
+		}
+
+		// Hit points, then shadow rays grouped by shadow tree leaf
+		float[] hx = scratch.packetHX, hy = scratch.packetHY, hz = scratch.packetHZ;
+		for (int i = 0; i < n; i++) {
+			if (hit[i] >= 0) {
+				hx[i] = px + dx[i] * closest[i];
+				hy[i] = py + dy[i] * closest[i];
+				hz[i] = pz + dz[i] * closest[i];
+			}
+		}
+		shadowPacket(scene, n, scratch);
+
+		RenderCounters counters = scratch.counters;
+		int i = 0;
+		for (int v = v0; v < v1; v++) {
+			for (int u = u0; u < u1; u++) {
+				counters.primaryRay();
+				if (length == 0) {
+					counters.emptyLeaf();
+				}
+				counters.tested(tests[i]);
+				counters.endPixel();
+				if (hit[i] >= 0) {
+					nTuple point = scratch.hitPoint.set(hx[i], hy[i], hz[i]);
+					pixels[(v - firstRow) * width + u] = store.shadeRGB(hit[i], point,
+																RayTraceShadows.LIGHT, scratch.packetShadow[i]);
+				} else {
+					pixels[(v - firstRow) * width + u] = RayTraceShadows.BACKGROUND_RGB;
+				}
+				i++;
+			}
+		}
+	}
+
+	// Fill scratch.packetShadow for the n rays of the packet that hit
+	// something, walking each shadow leaf's list once for all of the
+	// hit points that fall in it
+	private static void shadowPacket(Scene scene, int n, TraceScratch scratch) {
+		Quadtree shadowTree = scene.getShadowTree();
+		SphereStore store = scene.getStore();
+		int[] hit = scratch.packetHit;
+		Quadtree[] leaves = scratch.packetLeaf;
+		boolean[] shadow = scratch.packetShadow;
+		float[] hx = scratch.packetHX, hy = scratch.packetHY, hz = scratch.packetHZ;
+		float[] lx = scratch.packetLX;
+		int[] tests = scratch.packetTests;
+		nTuple sd = RayTraceShadows.SHADOW_DIR;
+
+		for (int i = 0; i < n; i++) {
+			shadow[i] = false;
+			leaves[i] = null;
+			if (hit[i] >= 0) {
+				scratch.counters.shadowRay();
+				nTuple point = scratch.hitPoint.set(hx[i], hy[i], hz[i]);
+				nTuple coords = RayTraceShadows.LIGHT_FRAME.toLight(point, scratch.shadowPoint);
+				leaves[i] = shadowTree.getLeaf(coords.getY(), coords.getZ());
+				lx[i] = coords.getX();
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			Quadtree leaf = leaves[i];
+			if (leaf == null) {
+				continue;
+			}
+			// Every unresolved ray in this leaf, starting with ray i; in a
+			// sorted leaf, spheres keyed past limit lie below all of them
+			int remaining = 0;
+			float limit = Float.NEGATIVE_INFINITY;
+			for (int j = i; j < n; j++) {
+				if (leaves[j] == leaf) {
+					remaining++;
+					limit = Math.max(limit, -lx[j]);
+				}
+			}
+			if (!leaf.isSorted()) {
+				limit = Float.POSITIVE_INFINITY;
+			}
+			for (SphereList list = leaf.getSphereList();
+					list != null && remaining > 0 && list.getKey() < limit; list = list.getNext()) {
+				int id = list.getId();
+				for (int j = i; j < n; j++) {
+					if (leaves[j] == leaf && !shadow[j]) {
+						tests[j]++;
+						if (store.intersect(hx[j], hy[j], hz[j], sd.getX(), sd.getY(), sd.getZ(), id) > 0.0f) {
+							shadow[j] = true;
+							remaining--;
+						}
+					}
+				}
+			}
+			for (int j = i; j < n; j++) {
+				if (leaves[j] == leaf) {
+					leaves[j] = null;
+				}
+			}
+		}
+	}
+
+	private static Quadtree leafAt(Quadtree tree, int u, int v, int width, int height,
+									TraceScratch scratch) {
+		nTuple q = RayTraceShadows.imagePlaneCoord(u, v, width, height, scratch.imagePoint);
+		return tree.getLeaf(q.getX(), q.getY());
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * ParallelRenderer.java
+ * Description: Traces an image on a work-stealing fork-join pool. The
+ * image is split into quadrants recursively, the same way the Quadtree
+ * splits the image plane, so each tile covers whole quadtree leaves.
+ * Every pixel goes through the same getRGB call as the serial path,
+ * so the output is bit-identical. With a packet size above 1, tiles are
+ * traced in square blocks through PacketTracer instead.
+ */
+import java.util.concurrent.*;
+
+public class ParallelRenderer {
+	public static final int MIN_TILE = 16;	// smallest tile edge in pixels
+	private ForkJoinPool pool;
+	private int packet;		// edge of a PacketTracer block, 1 for single rays
+
+	public int getThreads() { return this.pool.getParallelism(); }
+
+	// The pool tiles are traced on, for renderers that share its threads
+	public ForkJoinPool getPool() { return this.pool; }
+
+	public ParallelRenderer(int threads) {
+		this(threads, 1);
+	}
+
+	public ParallelRenderer(int threads, int packet) {
+		if (packet < 1 || packet > PacketTracer.MAX_SIZE) {
+			throw new IllegalArgumentException("Packet size must be between 1 and "
+												+ PacketTracer.MAX_SIZE);
+		}
+		this.pool = new ForkJoinPool(threads);
+		this.packet = packet;
+	}
+
+	public int[] render(Scene scene, int width, int height) {
+		int[] pixels = new int[width * height];
+		render(scene, pixels, width, height);
+		return pixels;
+	}
+
+	public void render(Scene scene, int[] pixels, int width, int height) {
+		FrameEvent event = new FrameEvent();
+		event.begin();
+		int tile = tileSize(scene, width, height);
+		this.pool.invoke(new TileTask(scene, pixels, 0, width, height, 0, 0, width, height,
+										tile, this.packet));
+		commitFrame(event, scene, width, height, (long) width * height);
+	}
+
+	// Trace rows [minV, maxV) of the image into band, which holds just
+	// those rows, so a large image can be rendered a band at a time
+	public void renderRows(Scene scene, int[] band, int width, int height, int minV, int maxV) {
+		FrameEvent event = new FrameEvent();
+		event.begin();
+		int tile = tileSize(scene, width, height);
+		this.pool.invoke(new TileTask(scene, band, minV, width, height, 0, minV, width, maxV,
+										tile, this.packet));
+		commitFrame(event, scene, width, height, (long) width * (maxV - minV));
+	}
+
+	// Trace only the listed tiles of an image cut into tile x tile
+	// squares, numbered row by row from the top left
+	public void renderTiles(Scene scene, int[] pixels, int width, int height, int tile,
+							int[] tiles, int count) {
+		int across = (width + tile - 1) / tile;
+		TileTask[] tasks = new TileTask[count];
+		long traced = 0;
+		for (int i = 0; i < count; i++) {
+			int u = (tiles[i] % across) * tile;
+			int v = (tiles[i] / across) * tile;
+			int maxU = Math.min(u + tile, width);
+			int maxV = Math.min(v + tile, height);
+			tasks[i] = new TileTask(scene, pixels, 0, width, height, u, v, maxU, maxV, tile,
+									this.packet);
+			traced += (maxU - u) * (maxV - v);
+		}
+		FrameEvent event = new FrameEvent();
+		event.begin();
+		this.pool.invoke(new TileList(tasks));
+		commitFrame(event, scene, width, height, traced);
+	}
+
+	private void commitFrame(FrameEvent event, Scene scene, int width, int height, long pixels) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.spheres = scene.getStore().size();
+			event.width = width;
+			event.height = height;
+			event.pixels = pixels;
+			event.threads = getThreads();
+			event.commit();
+		}
+	}
+
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	// Edge of a quadtree leaf in pixels, but no smaller than MIN_TILE
+	public static int tileSize(Scene scene, int width, int height) {
+		int level;
+		if (scene.getTree() != null) {
+			level = scene.getTree().getLevel();
+		} else if (scene.getLinearTree() != null) {
+			level = scene.getLinearTree().getLevel();
+		} else {
+			return 2 * MIN_TILE;
+		}
+		int leaf = Math.max(width, height) >> Math.min(level, 30);
+		return Math.max(leaf, MIN_TILE);
+	}
+
+	// Trace every pixel in a framebuffer, one at a time on this thread
+	public static void renderSerial(Scene scene, int[] pixels, int width, int height) {
+		for (int v = 0; v < height; v++) {
+			for (int u = 0; u < width; u++) {
+				pixels[v * width + u] = RayTraceShadows.getRGB(scene, u, v, width, height);
+			}
+		}
+		TraceScratch.flush();
+	}
+
+	// Runs a fixed set of tiles in parallel
+	private static class TileList extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private TileTask[] tasks;
+
+		TileList(TileTask[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	private static class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Scene scene;
+		private int[] pixels;
+		private int firstRow;		// image row held at the start of pixels
+		private int width, height;
+		private int minU, minV, maxU, maxV;	// pixel bounds, max exclusive
+		private int tile;
+		private int packet;
+
+		TileTask(Scene scene, int[] pixels, int firstRow, int width, int height,
+				int minU, int minV, int maxU, int maxV, int tile, int packet) {
+			this.scene = scene;
+			this.pixels = pixels;
+			this.firstRow = firstRow;
+			this.width = width;
+			this.height = height;
+			this.minU = minU;
+			this.minV = minV;
+			this.maxU = maxU;
+			this.maxV = maxV;
+			this.tile = tile;
+			this.packet = packet;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxU - minU <= tile && maxV - minV <= tile) {
+				TileEvent event = new TileEvent();
+				event.begin();
+				trace();
+				TraceScratch.flush();
+				event.end();
+				if (event.shouldCommit()) {
+					event.spheres = scene.getStore().size();
+					event.minU = minU;
+					event.minV = minV;
+					event.pixels = (maxU - minU) * (maxV - minV);
+					event.commit();
+				}
+			} else {
+				// Split into quadrants, matching the quadtree's medians
+				int medU = (maxU - minU > tile) ? (minU + maxU) / 2 : maxU;
+				int medV = (maxV - minV > tile) ? (minV + maxV) / 2 : maxV;
+				invokeAll(new TileTask(scene, pixels, firstRow, width, height,
+										minU, minV, medU, medV, tile, packet),
+							new TileTask(scene, pixels, firstRow, width, height,
+										medU, minV, maxU, medV, tile, packet),
+							new TileTask(scene, pixels, firstRow, width, height,
+										minU, medV, medU, maxV, tile, packet),
+							new TileTask(scene, pixels, firstRow, width, height,
+										medU, medV, maxU, maxV, tile, packet));
+			}
+		}
+
+		private void trace() {
+			if (packet > 1) {
+				for (int v = minV; v < maxV; v += packet) {
+					for (int u = minU; u < maxU; u += packet) {
+						PacketTracer.traceBlock(scene, pixels, firstRow, width, height, u, v,
+												Math.min(u + packet, maxU),
+												Math.min(v + packet, maxV));
+					}
+				}
+			} else {
+				for (int v = minV; v < maxV; v++) {
+					int row = (v - firstRow) * width;
+					for (int u = minU; u < maxU; u++) {
+						pixels[row + u] = RayTraceShadows.getRGB(scene, u, v, width, height);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * ProgressiveRenderer.java
+ * Description: Renders coarse-to-fine. The first pass traces one pixel
+ * in every step x step block and fills the block with its color; each
+ * later pass halves the step and traces only the pixels no earlier pass
+ * traced, until every pixel has been traced once. A listener sees the
+ * framebuffer after every pass, and cancel stops the render between
+ * rows, so a preview costs only a fraction of the full frame's rays.
+ */
+import java.util.concurrent.*;
+
+public class ProgressiveRenderer {
+	// Receives the framebuffer after each completed pass
+	public interface Listener {
+		void passComplete(int[] pixels, int width, int height, int pass, int passes);
+	}
+
+	private ForkJoinPool pool;
+	private int step;			// pixel spacing of the first pass, a power of 2
+	private volatile boolean cancelled;
+
+	public ProgressiveRenderer(int threads, int step) {
+		if (step < 1 || Integer.bitCount(step) != 1) {
+			throw new IllegalArgumentException("Step must be a power of 2");
+		}
+		this.pool = new ForkJoinPool(threads);
+		this.step = step;
+		this.cancelled = false;
+	}
+
+	public int getPasses() { return Integer.numberOfTrailingZeros(this.step) + 1; }
+
+	// Stop rendering; the pass in progress is abandoned
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() { return this.cancelled; }
+
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	// Render into pixels, returning the number of passes completed
+	public int render(Scene scene, int[] pixels, int width, int height, Listener listener) {
+		FrameEvent event = new FrameEvent();
+		event.begin();
+		int passes = getPasses();
+		int s = this.step;
+		for (int pass = 0; pass < passes; pass++, s /= 2) {
+			this.pool.invoke(new RowTask(this, scene, pixels, width, height, 0, height, s, pass == 0));
+			if (this.cancelled) {
+				return pass;
+			}
+			if (listener != null) {
+				listener.passComplete(pixels, width, height, pass + 1, passes);
+			}
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.spheres = scene.getStore().size();
+			event.width = width;
+			event.height = height;
+			event.pixels = (long) width * height;
+			event.threads = this.pool.getParallelism();
+			event.commit();
+		}
+		return passes;
+	}
+
+	// Traces the pixels of one pass in rows [minV, maxV)
+	private static class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int ROWS = 16;		// rows per task
+		private ProgressiveRenderer renderer;
+		private Scene scene;
+		private int[] pixels;
+		private int width, height;
+		private int minV, maxV;
+		private int step;
+		private boolean first;
+
+		RowTask(ProgressiveRenderer renderer, Scene scene, int[] pixels, int width, int height,
+				int minV, int maxV, int step, boolean first) {
+			this.renderer = renderer;
+			this.scene = scene;
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.minV = minV;
+			this.maxV = maxV;
+			this.step = step;
+			this.first = first;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxV - minV > ROWS * step) {
+				int medV = minV + (maxV - minV) / (2 * step) * step;
+				invokeAll(new RowTask(renderer, scene, pixels, width, height, minV, medV, step, first),
+							new RowTask(renderer, scene, pixels, width, height, medV, maxV, step, first));
+				return;
+			}
+			int coarse = 2 * step;
+			for (int v = minV; v < maxV; v += step) {
+				if (renderer.cancelled) {
+					break;
+				}
+				for (int u = 0; u < width; u += step) {
+					// Skip pixels an earlier, coarser pass already traced
+					if (!first && u % coarse == 0 && v % coarse == 0) {
+						continue;
+					}
+					int rgb = RayTraceShadows.getRGB(scene, u, v, width, height);
+					fill(u, v, rgb);
+				}
+			}
+			TraceScratch.flush();
+		}
+
+		// Color the step x step block at (u, v); the pixels other than
+		// (u, v) are traced by later passes
+		private void fill(int u, int v, int rgb) {
+			int maxU = Math.min(u + step, width);
+			int maxBlockV = Math.min(v + step, height);
+			for (int y = v; y < maxBlockV; y++) {
+				for (int x = u; x < maxU; x++) {
+					pixels[y * width + x] = rgb;
+				}
+			}
+		}
+	}
+}
@@ -6,185 +6,529 @@
  * into quadrants and checking if spheres reside in a quadrant. If they
  * don't, there is no need to shoot a ray through any pixel in that
  * quadrant.
+ *
+ * By default the tree is built to its full depth up front. Given a leaf
+ * capacity, it instead starts as a single leaf and a leaf is only split
+ * once it holds more spheres than the capacity, down to the same
+ * maximum depth.
+ *
+ * Leaves list spheres by their SphereStore id, and bounds are worked out
+ * from the store, so spheres that have no Sphere object (those loaded by
+ * SceneFile) can be added too. addSpheres fills an empty tree with many
+ * spheres at once, computing each sphere's bounds once and filling
+ * subtrees in parallel.
+ *
+ * sortLeaves orders each leaf's list so that a search through it can
+ * stop early: screen leaves by how far the near side of each sphere is
+ * from the camera, shadow leaves by how far each sphere reaches toward
+ * the light. Leaves changed after that are walked in full until sorted
+ * again.
  */
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Quadtree {
+	private static final int PARALLEL_SPHERES = 4096;	// smallest job split across threads
+	private static final float SORT_SLACK = 0.01f;	// covers rounding in SphereStore.intersect
 	private float minX, minY, maxX, maxY;
 	private int level;
 	private Quadtree ll, lr, ul, ur;
 	private SphereList sphereList;
+	private int count;			// spheres in sphereList
+	private int leafCapacity;	// 0 when the tree is built to full depth
+	private LeafPack pack;		// leaf spheres packed for LeafKernel, if built
+	private boolean sorted;		// sphereList is in key order
 	private float camZ;
+	private SphereStore store;	// the spheres listed by id
 
 	public SphereList getSphereList() { return this.sphereList; }
 
-	public Quadtree(float minX, float minY, float maxX, float maxY, int level, float camZ) {
+	public int getLevel() { return this.level; }
+
+	public LeafPack getPack() { return this.pack; }
+
+	public boolean isLeaf() { return this.ll == null; }
+
+	// Whether the leaf's list can be cut short by key (see sortLeaves)
+	public boolean isSorted() { return this.sorted; }
+
+	public int getCount() { return this.count; }
+
+	public Quadtree(float minX, float minY, float maxX, float maxY, int level, float camZ,
+					SphereStore store) {
+		this(minX, minY, maxX, maxY, level, camZ, 0, store);
+	}
+
+	// With leafCapacity > 0, nodes are subdivided as they fill up and
+	// level is the maximum depth
+	public Quadtree(float minX, float minY, float maxX, float maxY, int level, float camZ,
+					int leafCapacity, SphereStore store) {
 		this.minX = minX;
 		this.minY = minY;
 		this.maxX = maxX;
 		this.maxY = maxY;
 		this.level = level;
 		this.camZ = camZ;
+		this.store = store;
 		this.sphereList = null;
-		if (level == 0) {		// Leaf
+		this.count = 0;
+		this.leafCapacity = leafCapacity;
+		if (level == 0 || leafCapacity > 0) {		// Leaf
 			this.ll = null;
 			this.lr = null;
 			this.ul = null;
 			this.ur = null;
 		} else {				// interior node
-			level--;
-			float medX = 0.5f * (minX + maxX);
-			float medY = 0.5f * (minY + maxY);
-			this.ll = new Quadtree(minX, minY, medX, medY, level, camZ);
-			this.lr = new Quadtree(medX, minY, maxX, medY, level, camZ);
-			this.ul = new Quadtree(minX, medY, medX, maxY, level, camZ);
-			this.ur = new Quadtree(medX, medY, maxX, maxY, level, camZ);
+			subdivide();
 		}
 	}
 
-	public void addSphere(Sphere s) {
-		if (this.level == 0) {		// leaf
-			if (this.sphereList == null) {
-				this.sphereList = new SphereList(s, null);
-			} else {
-				this.sphereList = this.sphereList.add(s);
-			}
+	private void subdivide() {
+		int level = this.level - 1;
+		float medX = 0.5f * (minX + maxX);
+		float medY = 0.5f * (minY + maxY);
+		this.ll = new Quadtree(minX, minY, medX, medY, level, camZ, leafCapacity, store);
+		this.lr = new Quadtree(medX, minY, maxX, medY, level, camZ, leafCapacity, store);
+		this.ul = new Quadtree(minX, medY, medX, maxY, level, camZ, leafCapacity, store);
+		this.ur = new Quadtree(medX, medY, maxX, maxY, level, camZ, leafCapacity, store);
+	}
+
+	// Add to this leaf's list, and split it if it has grown past capacity
+	private void addToLeaf(int id, boolean shadow) {
+		if (this.sphereList == null) {
+			this.sphereList = new SphereList(id, null);
 		} else {
-			// Get bounding box
-			float medX = 0.5f * (this.minX + this.maxX);
-			float medY = 0.5f * (this.minY + this.maxY);
-			float cx = s.getCenter().getX();
-			float cy = s.getCenter().getY();
-			float cz = s.getCenter().getZ();
-			float r = s.getRadius();
-			float pz = this.camZ;
-	
-			// x-extent
-			float aX = (float) Math.sqrt(sqr(cx) + sqr(cz - pz));
-			float thetaX = (float) Math.atan(r/aX);
-			float psiX = (float) Math.asin(cx/aX); 
-			float phiX = psiX - thetaX;
-			float x1 = pz * (float) Math.tan(phiX);
-			float x2 = pz * (float) Math.tan(phiX + 2*thetaX);
-	
-			// y-extent
-			float aY = (float) Math.sqrt(sqr(cy) + sqr(cz - pz));
-			float thetaY = (float) Math.atan(r/aY);
-			float psiY = (float) Math.asin(cy/aY); 
-			float phiY = psiY - thetaY;
-			float y1 = pz * (float) Math.tan(phiY);
-			float y2 = pz * (float) Math.tan(phiY + 2*thetaY);
-	
-			// Make sure x2 > x1 and y2 > y1
-			if (x1 > x2) {
-				float temp = x1;
-				x1 = x2;
-				x2 = temp; 
-			}
-			if (y1 > y2) {
-				float temp = y1;
-				y1 = y2;
-				y2 = temp;
-			}
-	
-			// Send down tree to bottom, adding sphere to each node it's in
-			if (y1 < medY) {		// in bottom half
-				if (x1 < medX) {	// in bottom left
-					ll.addSphere(s);
-				}
-				if (x2 >= medX) {	// in bottom right
-					lr.addSphere(s);
-				}
+			this.sphereList = this.sphereList.add(id);
+		}
+		this.count++;
+		this.pack = null;
+		this.sorted = false;
+		if (this.leafCapacity > 0 && this.count > this.leafCapacity && this.level > 0) {
+			// Re-add oldest first so the children's lists keep the same order
+			int[] ids = new int[this.count];
+			SphereList list = this.sphereList;
+			for (int i = this.count - 1; i >= 0; i--) {
+				ids[i] = list.getId();
+				list = list.getNext();
 			}
-			if (y2 >= medY) {		// in top half
-				if (x1 < medX) {	// in top left
-					ul.addSphere(s);
-				}
-				if (x2 >= medX) {	// in top right
-					ur.addSphere(s);
+			this.sphereList = null;
+			this.count = 0;
+			subdivide();
+			for (int i = 0; i < ids.length; i++) {
+				if (shadow) {
+					addShadowSphere(ids[i]);
+				} else {
+					addSphere(ids[i]);
 				}
 			}
 		}
 	}
 
+	// Unlink a sphere from this leaf's list. Adaptive leaves are not
+	// merged back together when they empty out.
+	private boolean removeFromLeaf(int id) {
+		if (!this.sphereList.contains(id)) {
+			return false;
+		}
+		this.sphereList = this.sphereList.remove(id);
+		this.count--;
+		this.pack = null;
+		return true;
+	}
+
+	// Add the sphere with the given store id
+	public void addSphere(int id) {
+		float[] bounds = screenBounds(this.store, id, this.camZ, new float[4], 0);
+		insert(id, bounds[0], bounds[1], bounds[2], bounds[3], false);
+	}
+
 	// Add spheres that could cast shadows on one another
-	public void addShadowSphere(Sphere s) {
-		if (this.level == 0) {		// leaf
-			if (this.sphereList == null) {
-				this.sphereList = new SphereList(s, null);
-			} else {
-				this.sphereList = this.sphereList.add(s);
+	public void addShadowSphere(int id) {
+		float[] bounds = shadowBounds(this.store, id, new float[4], 0);
+		insert(id, bounds[0], bounds[1], bounds[2], bounds[3], true);
+	}
+
+	// Take a sphere out of every leaf addSphere put it in. Must be called
+	// before the sphere's store entry is moved, while its bounds still
+	// match the tree.
+	public boolean removeSphere(int id) {
+		float[] bounds = screenBounds(this.store, id, this.camZ, new float[4], 0);
+		return remove(id, bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+
+	public boolean removeShadowSphere(int id) {
+		float[] bounds = shadowBounds(this.store, id, new float[4], 0);
+		return remove(id, bounds[0], bounds[1], bounds[2], bounds[3]);
+	}
+
+	// Bounding box x1, y1, x2, y2 of the sphere's projection on the
+	// image plane, seen from a camera at (0, 0, camZ)
+	public static float[] screenBounds(Sphere s, float camZ) {
+		return screenBounds(s, camZ, new float[4], 0);
+	}
+
+	// Same, written to dest[offset .. offset + 3]
+	public static float[] screenBounds(Sphere s, float camZ, float[] dest, int offset) {
+		return screenBounds(s.getCenter().getX(), s.getCenter().getY(), s.getCenter().getZ(),
+							s.getRadius(), camZ, dest, offset);
+	}
+
+	// Same, for sphere id of a store
+	public static float[] screenBounds(SphereStore store, int id, float camZ, float[] dest,
+										int offset) {
+		return screenBounds(store.getCenterX(id), store.getCenterY(id), store.getCenterZ(id),
+							store.getRadius(id), camZ, dest, offset);
+	}
+
+	// Same, for a sphere centered at (cx, cy, cz) with radius r
+	public static float[] screenBounds(float cx, float cy, float cz, float r, float camZ,
+										float[] dest, int offset) {
+		float pz = camZ;
+
+		// x-extent
+		float aX = (float) Math.sqrt(sqr(cx) + sqr(cz - pz));
+		float thetaX = (float) Math.atan(r/aX);
+		float psiX = (float) Math.asin(cx/aX); 
+		float phiX = psiX - thetaX;
+		float x1 = pz * (float) Math.tan(phiX);
+		float x2 = pz * (float) Math.tan(phiX + 2*thetaX);
+
+		// y-extent
+		float aY = (float) Math.sqrt(sqr(cy) + sqr(cz - pz));
+		float thetaY = (float) Math.atan(r/aY);
+		float psiY = (float) Math.asin(cy/aY); 
+		float phiY = psiY - thetaY;
+		float y1 = pz * (float) Math.tan(phiY);
+		float y2 = pz * (float) Math.tan(phiY + 2*thetaY);
+
+		// Make sure x2 > x1 and y2 > y1
+		dest[offset] = Math.min(x1, x2);
+		dest[offset + 1] = Math.min(y1, y2);
+		dest[offset + 2] = Math.max(x1, x2);
+		dest[offset + 3] = Math.max(y1, y2);
+		return dest;
+	}
+
+	// Bounding box of sphere id in the light's u2-u3 plane
+	private static float[] shadowBounds(SphereStore store, int id, float[] dest, int offset) {
+		float r = store.getRadius(id);
+
+		// u2-extent
+		float a1 = store.getShadowY(id) - r;
+		float a2 = store.getShadowY(id) + r;
+
+		// u3-extent
+		float b1 = store.getShadowZ(id) - r;
+		float b2 = store.getShadowZ(id) + r;
+		dest[offset] = a1;
+		dest[offset + 1] = b1;
+		dest[offset + 2] = a2;
+		dest[offset + 3] = b2;
+		return dest;
+	}
+
+	// Send down tree to bottom, adding sphere to each node its bounds
+	// overlap
+	private void insert(int id, float x1, float y1, float x2, float y2, boolean shadow) {
+		if (isLeaf()) {
+			addToLeaf(id, shadow);
+			return;
+		}
+		float medX = 0.5f * (this.minX + this.maxX);
+		float medY = 0.5f * (this.minY + this.maxY);
+		if (y1 < medY) {		// in bottom half
+			if (x1 < medX) {	// in bottom left
+				ll.insert(id, x1, y1, x2, y2, shadow);
 			}
-		} else {
-			// Get bounding box
-			float medX = 0.5f * (this.minX + this.maxX);
-			float medY = 0.5f * (this.minY + this.maxY);
-			float r = s.getRadius();
-	
-			// u2-extent
-			float a1 = s.getCenterShadow().getY() + r;
-			float a2 = s.getCenterShadow().getY() - r;
-
-			// u3-extent
-			float b1 = s.getCenterShadow().getZ() + r;
-			float b2 = s.getCenterShadow().getZ() - r;
-	
-			// Make sure a2 > a1 and b2 > b1
-			if (a1 > a2) {
-				float temp = a1;
-				a1 = a2;
-				a2 = temp; 
-			}
-			if (b1 > b2) {
-				float temp = b1;
-				b1 = b2;
-				b2 = temp;
-			}
-	
-			// Send down tree to bottom, adding sphere to each node it's in
-			if (b1 < medY) {		// in bottom half
-				if (a1 < medX) {	// in bottom left
-					ll.addShadowSphere(s);
+			if (x2 >= medX) {	// in bottom right
+				lr.insert(id, x1, y1, x2, y2, shadow);
+			}
+		}
+		if (y2 >= medY) {		// in top half
+			if (x1 < medX) {	// in top left
+				ul.insert(id, x1, y1, x2, y2, shadow);
+			}
+			if (x2 >= medX) {	// in top right
+				ur.insert(id, x1, y1, x2, y2, shadow);
+			}
+		}
+	}
+
+	// Visit the same leaves insert would, unlinking the sphere
+	private boolean remove(int id, float x1, float y1, float x2, float y2) {
+		if (isLeaf()) {
+			return this.sphereList != null && removeFromLeaf(id);
+		}
+		float medX = 0.5f * (this.minX + this.maxX);
+		float medY = 0.5f * (this.minY + this.maxY);
+		boolean removed = false;
+		if (y1 < medY) {
+			if (x1 < medX) {
+				removed |= ll.remove(id, x1, y1, x2, y2);
+			}
+			if (x2 >= medX) {
+				removed |= lr.remove(id, x1, y1, x2, y2);
+			}
+		}
+		if (y2 >= medY) {
+			if (x1 < medX) {
+				removed |= ul.remove(id, x1, y1, x2, y2);
+			}
+			if (x2 >= medX) {
+				removed |= ur.remove(id, x1, y1, x2, y2);
+			}
+		}
+		return removed;
+	}
+
+	//////////////////////////////////////////////////////////////////
+	//							BULK LOADING						//
+	//////////////////////////////////////////////////////////////////
+
+	// Add store spheres first .. first + count - 1 at once, as addSphere
+	// (or, with shadow set, addShadowSphere) would one at a time in id
+	// order. Each sphere's bounds are computed once, in parallel, and
+	// subtrees are then filled in parallel. Leaf lists come out in the
+	// same order, so the tree is the same as one built sphere by sphere.
+	public void addSpheres(int first, int count, boolean shadow) {
+		float[] bounds = new float[4 * count];
+		new BoundsTask(this.store, first, bounds, this.camZ, shadow, 0, count).invoke();
+		int[] ids = new int[count];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = i;
+		}
+		new LoadTask(this, first, bounds, ids, ids.length, shadow).invoke();
+	}
+
+	// Fill this subtree with the n spheres listed in ids (counted from
+	// store id first), in the order they were added. Large subtrees are
+	// split between threads below the node; small ones are filled by
+	// insert, one sphere at a time.
+	private void load(int first, float[] bounds, int[] ids, int n, boolean shadow) {
+		boolean split = !isLeaf();
+		if (!split && this.count == 0 && this.leafCapacity > 0 && n > this.leafCapacity
+				&& this.level > 0) {
+			subdivide();		// as addToLeaf would once it overflowed
+			split = true;
+		}
+		if (!split || n < PARALLEL_SPHERES) {
+			for (int i = 0; i < n; i++) {
+				int b = 4 * ids[i];
+				insert(first + ids[i], bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3],
+						shadow);
+			}
+			return;
+		}
+
+		// Split the ids between the children with the same tests as insert
+		float medX = 0.5f * (this.minX + this.maxX);
+		float medY = 0.5f * (this.minY + this.maxY);
+		int[][] childIds = new int[4][];
+		int[] childCount = new int[4];
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < n; i++) {
+				int b = 4 * ids[i];
+				float x1 = bounds[b], y1 = bounds[b + 1], x2 = bounds[b + 2], y2 = bounds[b + 3];
+				if (y1 < medY) {
+					if (x1 < medX) {
+						childCount[0] = add(childIds[0], childCount[0], ids[i]);
+					}
+					if (x2 >= medX) {
+						childCount[1] = add(childIds[1], childCount[1], ids[i]);
+					}
 				}
-				if (a2 >= medX) {	// in bottom right
-					lr.addShadowSphere(s);
+				if (y2 >= medY) {
+					if (x1 < medX) {
+						childCount[2] = add(childIds[2], childCount[2], ids[i]);
+					}
+					if (x2 >= medX) {
+						childCount[3] = add(childIds[3], childCount[3], ids[i]);
+					}
 				}
 			}
-			if (b2 >= medY) {		// in top half
-				if (a1 < medX) {	// in top left
-					ul.addShadowSphere(s);
-				}
-				if (a2 >= medX) {	// in top right
-					ur.addShadowSphere(s);
+			if (pass == 0) {	// sizes known, now fill
+				for (int c = 0; c < 4; c++) {
+					childIds[c] = new int[childCount[c]];
+					childCount[c] = 0;
 				}
 			}
 		}
 
+		ForkJoinTask.invokeAll(new LoadTask(ll, first, bounds, childIds[0], childCount[0], shadow),
+								new LoadTask(lr, first, bounds, childIds[1], childCount[1], shadow),
+								new LoadTask(ul, first, bounds, childIds[2], childCount[2], shadow),
+								new LoadTask(ur, first, bounds, childIds[3], childCount[3], shadow));
+	}
+
+	// Append id to list if it has been allocated (the second pass),
+	// returning the new count
+	private static int add(int[] list, int count, int id) {
+		if (list != null) {
+			list[count] = id;
+		}
+		return count + 1;
+	}
+
+	private static class LoadTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Quadtree node;
+		private int first;
+		private float[] bounds;
+		private int[] ids;
+		private int n;
+		private boolean shadow;
+
+		LoadTask(Quadtree node, int first, float[] bounds, int[] ids, int n, boolean shadow) {
+			this.node = node;
+			this.first = first;
+			this.bounds = bounds;
+			this.ids = ids;
+			this.n = n;
+			this.shadow = shadow;
+		}
+
+		@Override
+		protected void compute() {
+			node.load(first, bounds, ids, n, shadow);
+		}
+	}
+
+	// Computes the bounds of store spheres first + [lo, hi)
+	private static class BoundsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private SphereStore store;
+		private int first;
+		private float[] bounds;
+		private float camZ;
+		private boolean shadow;
+		private int lo, hi;
+
+		BoundsTask(SphereStore store, int first, float[] bounds, float camZ, boolean shadow,
+					int lo, int hi) {
+			this.store = store;
+			this.first = first;
+			this.bounds = bounds;
+			this.camZ = camZ;
+			this.shadow = shadow;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > PARALLEL_SPHERES) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new BoundsTask(store, first, bounds, camZ, shadow, lo, mid),
+							new BoundsTask(store, first, bounds, camZ, shadow, mid, hi));
+				return;
+			}
+			for (int i = lo; i < hi; i++) {
+				if (shadow) {
+					shadowBounds(store, first + i, bounds, 4 * i);
+				} else {
+					screenBounds(store, first + i, camZ, bounds, 4 * i);
+				}
+			}
+		}
 	}
 
 	// Return spheres that intersect a given point on the screen
 	public SphereList getSpheres(float x, float y) {
-		// Go down tree to leaves to find list of spheres
-		if (this.level == 0) {
-			return this.sphereList;
+		return getLeaf(x, y).sphereList;
+	}
+
+	// Return the leaf containing a given point on the screen
+	public Quadtree getLeaf(float x, float y) {
+		// Go down tree to leaves
+		if (isLeaf()) {
+			return this;
 		}
 		float medX = 0.5f * (this.minX + this.maxX);
 		float medY = 0.5f * (this.minY + this.maxY);
 			
 		if ((this.minX <= x) && (x < medX)) {		// left half
 			if ((this.minY <= y) && (y < medY)) {	// bottom half
-				return ll.getSpheres(x, y);
+				return ll.getLeaf(x, y);
 			} else {
-				return ul.getSpheres(x, y);
+				return ul.getLeaf(x, y);
 			}
 		} else {									// right half
 			if ((this.minY <= y) && (y < medY)) {	// bottom half
-				return lr.getSpheres(x, y);
+				return lr.getLeaf(x, y);
+			} else {
+				return ur.getLeaf(x, y);
+			}
+		}
+	}
+
+	// Copy every leaf's spheres into a LeafPack for the vector kernels.
+	// Adding or removing a sphere drops the pack of each leaf it touches,
+	// and those leaves walk their lists until this is called again; only
+	// the leaves changed since the last call are repacked.
+	public void packLeaves() {
+		if (isLeaf()) {
+			if (this.pack == null) {
+				this.pack = (this.sphereList == null) ? null : new LeafPack(this.sphereList, this.store);
+			}
+		} else {
+			ll.packLeaves();
+			lr.packLeaves();
+			ul.packLeaves();
+			ur.packLeaves();
+		}
+	}
+
+	// Sort the lists of the leaves changed since the last call by key,
+	// nearest first. A screen leaf's key is the distance from the camera
+	// to the near side of the sphere, which no ray through the leaf can
+	// hit sooner, so the search for the closest hit can stop at a key past
+	// the best hit so far. A shadow leaf's key is minus how far the sphere
+	// reaches along the light direction; a sphere can only block a point
+	// lower down the light's axis, so a shadow search can stop at a key
+	// past minus the point's light-space x. Both keys are moved down by
+	// SORT_SLACK. Removing a sphere leaves a list sorted; adding one does
+	// not.
+	public void sortLeaves(boolean shadow) {
+		if (!isLeaf()) {
+			ll.sortLeaves(shadow);
+			lr.sortLeaves(shadow);
+			ul.sortLeaves(shadow);
+			ur.sortLeaves(shadow);
+			return;
+		}
+		if (this.sorted) {
+			return;
+		}
+		for (SphereList list = this.sphereList; list != null; list = list.getNext()) {
+			int id = list.getId();
+			float key;
+			if (shadow) {
+				key = -(this.store.getShadowX(id) + this.store.getRadius(id));
 			} else {
-				return ur.getSpheres(x, y);
+				key = (float) Math.sqrt(sqr(this.store.getCenterX(id)) + sqr(this.store.getCenterY(id))
+										+ sqr(this.store.getCenterZ(id) - this.camZ))
+						- this.store.getRadius(id);
 			}
+			list.setKey(key - SORT_SLACK);
+		}
+		if (this.sphereList != null) {
+			this.sphereList = SphereList.sort(this.sphereList, this.count);
+			this.pack = null;
+		}
+		this.sorted = true;
+	}
+
+	// Add every leaf at or below this node to leaves
+	public void getLeaves(List<Quadtree> leaves) {
+		if (isLeaf()) {
+			leaves.add(this);
+		} else {
+			ll.getLeaves(leaves);
+			lr.getLeaves(leaves);
+			ul.getLeaves(leaves);
+			ur.getLeaves(leaves);
 		}
 	}
 
-	private float sqr(float x) { return x * x; }
+	private static float sqr(float x) { return x * x; }
 }
@@ -23,48 +23,49 @@ William Tyas modified this code to implement a ray tracer.
 import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 
 public class RayTraceShadows extends Frame {
-	public static final int WIDTH = 512;
+	public static final int WIDTH = 512;		// default window size
 	public static final int HEIGHT = 512;
 	public static final Color BACKGROUND = new Color(0.4f, 0.6f, 0.8f);
+	public static final int BACKGROUND_RGB = BACKGROUND.getRGB();
 	public static final nTuple LIGHT = new nTuple(1.0f, 1.0f, 1.0f).normalize();
+	public static final nTuple SHADOW_DIR = LIGHT.normalize();	// as normalized by ray
 	public static final nTuple LIGHT_BASIS_2 = new nTuple(5.0f, -3.0f, -2.0f).normalize();
 	public static final nTuple LIGHT_BASIS_3 = new nTuple(1.0f, 7.0f, -8.0f).normalize();
+	public static final LightFrame LIGHT_FRAME = new LightFrame(LIGHT, LIGHT_BASIS_2, LIGHT_BASIS_3);
 	public static final float IMG_PLANE_SZ = 10.0f;
 	public static final float CAM_Z = 20.0f;
-	public static Quadtree tree;
-	public static Quadtree shadowTree;
+	public static final nTuple CAMERA = new nTuple(0.0f, 0.0f, CAM_Z);
+	public static Scene scene;
+	public static int imageWidth = WIDTH;	// size of the window's image
+	public static int imageHeight = HEIGHT;
+	public static LeafKernel leafKernel;	// tests packed leaves when set
+	private BufferedImage image;			// framebuffer shown in the window
+	private ProgressiveRenderer renderer;
 
 	/*
-	 * Main entry point
+	 * Main entry point; the image size can be given as
+	 * "java RayTraceShadows [width height]"
 	 */
 	public static void main(String[] args) {
+		if (args.length == 2) {
+			imageWidth = Integer.parseInt(args[0]);
+			imageHeight = Integer.parseInt(args[1]);
+		} else if (args.length != 0) {
+			System.err.println("Usage: java RayTraceShadows [width height]");
+			System.exit(1);
+		}
 		Scanner input = new Scanner(System.in);
+		RenderMetrics.register();
 		int numSpheres = howManySpheres(input);
-		int treeDepth = howDeep(input);
-		tree = new Quadtree(-IMG_PLANE_SZ,
-							-IMG_PLANE_SZ,
-							IMG_PLANE_SZ,
-							IMG_PLANE_SZ,
-							treeDepth,
-							CAM_Z);
-		shadowTree = new Quadtree(-IMG_PLANE_SZ * 5,
-									-IMG_PLANE_SZ * 5,
-									IMG_PLANE_SZ * 5,
-									IMG_PLANE_SZ * 5,
-									treeDepth,
-									CAM_Z);
-		ArrayList<Sphere> spheres = new ArrayList<Sphere>();
-
-		for (int i = 0; i < numSpheres; i++) {
-			Sphere s = randSphere(LIGHT, LIGHT_BASIS_2, LIGHT_BASIS_3);
-			tree.addSphere(s);
-			shadowTree.addShadowSphere(s);
-			spheres.add(s);
-		}
+		boolean useBVH = useBVH(input);
+		int treeDepth = useBVH ? 0 : howDeep(input);
+		int leafCapacity = useBVH ? 0 : howFull(input);
+		scene = Scene.random(numSpheres, treeDepth, leafCapacity, useBVH);
 
-		Statistics stats = new Statistics(spheres);
+		Statistics stats = new Statistics(scene.getSpheres());
 		stats.generateUsefulInfo();
 		new RayTraceShadows();
 	}
@@ -74,12 +75,26 @@ public class RayTraceShadows extends Frame {
 		return input.nextInt();
 	}
 
+	public static boolean useBVH(Scanner input) {
+		System.out.print("Use a bounding volume hierarchy instead of quadtrees (y/n)? ");
+		return input.next().toLowerCase().startsWith("y");
+	}
+
 	public static int howDeep(Scanner input) {
 		System.out.print("How deep do you want the quadtree to be? (Less than 10 recommended)? ");
 		return input.nextInt();
 	}
 
+	public static int howFull(Scanner input) {
+		System.out.print("How many spheres can a quadtree leaf hold before it is split? (0 to build the whole tree)? ");
+		return input.nextInt();
+	}
+
 	public static Sphere randSphere(nTuple u1, nTuple u2, nTuple u3) {
+		return randSphere(new LightFrame(u1, u2, u3));
+	}
+
+	public static Sphere randSphere(LightFrame light) {
 		float x = (float) Math.random() * 16.0f - 8.0f;
 		float y = (float) Math.random() * 16.0f - 8.0f;
 		float z = (float) Math.random() * 16.0f - 8.0f;
@@ -87,87 +102,260 @@ public class RayTraceShadows extends Frame {
 		float r = (float) Math.random();
 		float g = (float) Math.random();
 		float b = (float) Math.random();
-		return new Sphere(x, y, z, radius, r, g, b, u1, u2, u3);
+		return new Sphere(x, y, z, radius, r, g, b, light);
 	}
 
 	public Color getColor(int x, int y) {
-		nTuple p = new nTuple(0.0f, 0.0f, CAM_Z);	// camera point
-		nTuple q = imagePlaneCoord(x, y);			// point on image plane
-		ray ray = new ray(p, q.subtract(p));
-		double closestHit = Double.POSITIVE_INFINITY;
+		return getColor(scene, x, y, imageWidth, imageHeight);
+	}
+
+	// Color of pixel (x, y) in an image of the given resolution
+	public static Color getColor(Scene scene, float x, float y, int width, int height) {
+		return new Color(getRGB(scene, x, y, width, height));
+	}
+
+	// Same as getColor, packed as an ARGB int. Uses the calling thread's
+	// scratch vectors, so nothing is allocated per pixel.
+	public static int getRGB(Scene scene, float x, float y, int width, int height) {
+		TraceScratch scratch = TraceScratch.get();
+		nTuple p = CAMERA;
+		nTuple q = imagePlaneCoord(x, y, width, height, scratch.imagePoint);
+		nTuple dir = q.subtract(p, scratch.direction).normalize(scratch.direction);
+		float closestHit = Float.POSITIVE_INFINITY;
 		float intersection = 0.0f;	// t-value for ray to intersect sphere
-		Sphere closestSphere = null;
-		SphereList intersectSpheres = tree.getSpheres(q.getX(), q.getY());
+		int closestId = -1;
+		SphereStore store = scene.getStore();
+		BVH bvh = scene.getBVH();
+		LinearQuadtree linear = scene.getLinearTree();
+		SphereList intersectSpheres = null;
+		boolean sorted = false;		// intersectSpheres is nearest first
+		RenderCounters counters = scratch.counters;
+		counters.primaryRay();
 
+		if (bvh != null) {
+			int id = bvh.nearestHit(p, dir, 0.01f, scratch);
+			if (id >= 0) {
+				closestHit = scratch.hitDistance;
+				closestId = id;
+			}
+		} else if (linear != null) {
+			int leaf = linear.getLeaf(q.getX(), q.getY());
+			int[] ids = linear.getIds();
+			int end = linear.getEnd(leaf);
+			if (linear.getStart(leaf) == end) {
+				counters.emptyLeaf();
+			}
+			for (int i = linear.getStart(leaf); i < end; i++) {
+				intersection = store.intersect(p, dir, ids[i]);
+				if (intersection > 0.01f && intersection < closestHit) {
+					closestHit = intersection;
+					closestId = ids[i];
+				}
+			}
+			counters.tested(linear.getCount(leaf));
+		} else {
+			Quadtree leaf = scene.getTree().getLeaf(q.getX(), q.getY());
+			LeafPack pack = leaf.getPack();
+			if (leaf.getSphereList() == null) {
+				counters.emptyLeaf();
+			}
+			if (leafKernel != null && pack != null) {
+				int i = leafKernel.nearest(pack, p.getX(), p.getY(), p.getZ(),
+											dir.getX(), dir.getY(), dir.getZ(), 0.01f, scratch);
+				counters.tested(pack.size());
+				if (i >= 0) {
+					closestHit = scratch.hitDistance;
+					closestId = pack.getId(i);
+				}
+			} else {
+				intersectSpheres = leaf.getSphereList();
+				sorted = leaf.isSorted();
+			}
+		}
+
+		int tests = 0;
 		while (intersectSpheres != null) { // Find closest sphere
-			Sphere next = intersectSpheres.getSphere();
-			intersection = ray.intersectSphere(next);
+			if (sorted && intersectSpheres.getKey() >= closestHit) {
+				break;		// the rest all start past the closest hit
+			}
+			int id = intersectSpheres.getId();
+			intersection = store.intersect(p, dir, id);
+			tests++;
 			if (intersection > 0.01f && intersection < closestHit) {
 				closestHit = intersection;
-				closestSphere = next;
+				closestId = id;
 			}
 			intersectSpheres = intersectSpheres.getNext();
 		}
+		counters.tested(tests);
 
-		if (closestSphere != null) {
-			nTuple IntPt = ray.pointAlongRay((float) closestHit);
-			boolean inShadow = inShadow(IntPt);
-			return closestSphere.shadeSphere(IntPt, LIGHT, inShadow);
-		} else {
-			return BACKGROUND;
+		int rgb = BACKGROUND_RGB;
+		int shadowed = 0;
+		if (closestId >= 0) {
+			nTuple IntPt = ray.pointAlongRay(p, dir, closestHit, scratch.hitPoint);
+			if (scene.getLightCount() == 1) {
+				boolean inShadow = inShadow(scene, IntPt);
+				shadowed = inShadow ? 1 : 0;
+				rgb = store.shadeRGB(closestId, IntPt, LIGHT, inShadow);
+			} else {
+				// A light behind the surface adds nothing, so needs no
+				// shadow ray
+				for (int k = 0; k < scene.getLightCount(); k++) {
+					if (store.cosine(closestId, IntPt, scene.getLight(k).getDirection()) > 0.0f
+							&& inShadow(scene, IntPt, k)) {
+						shadowed |= 1 << k;
+					}
+				}
+				rgb = store.shadeRGB(closestId, IntPt, scene.getLights(), shadowed);
+			}
 		}
+		scratch.hitId = closestId;
+		scratch.hitShadowed = shadowed;
+		counters.endPixel();
+		return rgb;
 	}
 
 	// Check if a point on a sphere is in shadow
-	public boolean inShadow(nTuple point) {
-		nTuple coords = new nTuple(point.coordChange(LIGHT,
-														LIGHT_BASIS_2,
-														LIGHT_BASIS_3,
-														point));
-		SphereList shadowIntersect = shadowTree.getSpheres(coords.getY(), coords.getZ()); 
-		ray shadowRay = new ray(new nTuple(), LIGHT);	// terminal at origin makes math easier
-		boolean inShadow = false;
-		while (!inShadow && (shadowIntersect != null)) {
-			Sphere next = new Sphere(shadowIntersect.getSphere());
-			next.setCenter(next.getCenter().subtract(point));
-			float intersection = shadowRay.intersectSphere(next);
-			if (intersection > 0.0f) {
-				inShadow = true;
+	public static boolean inShadow(Scene scene, nTuple point) {
+		return inShadow(scene, point, 0);
+	}
+
+	// Check if a point is in the shadow of one of the scene's lights.
+	// Stops at the first sphere found blocking it.
+	public static boolean inShadow(Scene scene, nTuple point, int light) {
+		TraceScratch scratch = TraceScratch.get();
+		nTuple shadowDir = (light == 0) ? SHADOW_DIR : scene.getLight(light).getDirection();
+		SphereStore store = scene.getStore();
+		ShadowCache cache = scratch.shadowCache;
+		RenderCounters counters = scratch.counters;
+		counters.shadowRay();
+
+		// Neighbouring points are usually blocked by the same sphere
+		if (ShadowCache.enabled) {
+			int last = cache.getOccluder(scene, light);
+			if (last >= 0) {
+				counters.tested(1);
+				if (store.intersect(point, shadowDir, last) > 0.0f) {
+					cache.hit();
+					return true;
+				}
+			}
+		}
+
+		int occluder = -1;
+		if (scene.getBVH() != null) {
+			occluder = scene.getBVH().anyHit(point, shadowDir, scratch);
+		} else if (light > 0 || scene.getLinearShadowTree() != null) {
+			LinearQuadtree linear = (light > 0) ? scene.getLightTree(light)
+												: scene.getLinearShadowTree();
+			nTuple coords = scene.getLight(light).toLight(point, scratch.shadowPoint);
+			int leaf = linear.getLeaf(coords.getY(), coords.getZ());
+			int[] ids = linear.getIds();
+			int tests = 0;
+			for (int i = linear.getStart(leaf); occluder < 0 && i < linear.getEnd(leaf); i++) {
+				tests++;
+				if (store.intersect(point, shadowDir, ids[i]) > 0.0f) {
+					occluder = ids[i];
+				}
+			}
+			cache.tested(tests);
+			counters.tested(tests);
+		} else {
+			nTuple coords = LIGHT_FRAME.toLight(point, scratch.shadowPoint);
+			Quadtree leaf = scene.getShadowTree().getLeaf(coords.getY(), coords.getZ());
+			LeafPack pack = leaf.getPack();
+			SphereList shadowIntersect = leaf.getSphereList();
+			// Spheres keyed at or past this lie below the point along the light
+			float limit = leaf.isSorted() ? -coords.getX() : Float.POSITIVE_INFINITY;
+			int tests = 0;
+			if (leafKernel != null && pack != null) {
+				int i = leafKernel.anyHit(pack, point.getX(), point.getY(), point.getZ(),
+											SHADOW_DIR.getX(), SHADOW_DIR.getY(), SHADOW_DIR.getZ());
+				occluder = (i >= 0) ? pack.getId(i) : -1;
+				tests = (i >= 0) ? i + 1 : pack.size();
+				shadowIntersect = null;
+			}
+			while (occluder < 0 && shadowIntersect != null && shadowIntersect.getKey() < limit) {
+				// Shoot the shadow ray from the point itself rather than
+				// moving each sphere so the ray starts at the origin
+				int id = shadowIntersect.getId();
+				float intersection = store.intersect(point, SHADOW_DIR, id);
+				tests++;
+				if (intersection > 0.0f) {
+					occluder = id;
+				}
+				shadowIntersect = shadowIntersect.getNext();
 			}
-			shadowIntersect = shadowIntersect.getNext();
+			cache.tested(tests);
+			counters.tested(tests);
 		}
-		return inShadow;
+		if (occluder >= 0 && ShadowCache.enabled) {
+			cache.remember(scene, light, occluder);
+		}
+		return occluder >= 0;
+	}
+
+	public static nTuple imagePlaneCoord(float u, float v) {
+		return imagePlaneCoord(u, v, imageWidth, imageHeight);
 	}
 
-	public nTuple imagePlaneCoord(float u, float v) {
-		return new nTuple(this.IMG_PLANE_SZ * (2*u/(float)WIDTH - 1),
-							-1.0f * this.IMG_PLANE_SZ * (2*v/(float)HEIGHT - 1),
-							0.0f);
+	public static nTuple imagePlaneCoord(float u, float v, int width, int height) {
+		return imagePlaneCoord(u, v, width, height, new nTuple());
+	}
+
+	public static nTuple imagePlaneCoord(float u, float v, int width, int height, nTuple dest) {
+		return dest.set(IMG_PLANE_SZ * (2*u/(float)width - 1),
+						-1.0f * IMG_PLANE_SZ * (2*v/(float)height - 1),
+						0.0f);
 	}
 
     /**
      * Our RayTraceShadows constructor sets the frame's size, adds the
      * visual components, and then makes them visible to the user.
      * It uses an adapter class to deal with the user closing
-     * the frame.
+     * the frame. The scene is rendered progressively on a background
+     * thread, and the frame is repainted after each pass; pressing
+     * Escape stops refining the preview.
      **/
     public RayTraceShadows() {
         super("RayTracer");
-        setSize(WIDTH, HEIGHT);
+        image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+        renderer = new ProgressiveRenderer(Runtime.getRuntime().availableProcessors(), 4);
+        setSize(imageWidth, imageHeight);
         setVisible(true);
         addWindowListener(new WindowAdapter()
                           {public void windowClosing(WindowEvent e)
-                          {dispose(); System.exit(0);}
+                          {renderer.cancel(); dispose(); System.exit(0);}
                           }
         );
+        addKeyListener(new KeyAdapter()
+                       {public void keyPressed(KeyEvent e)
+                       {if (e.getKeyCode() == KeyEvent.VK_ESCAPE) renderer.cancel();}
+                       }
+        );
+
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Thread render = new Thread(new Runnable() {
+            public void run() {
+                renderer.render(scene, pixels, imageWidth, imageHeight, new ProgressiveRenderer.Listener() {
+                    public void passComplete(int[] pixels, int width, int height,
+                                             int pass, int passes) {
+                        repaint();
+                    }
+                });
+                renderer.shutdown();
+            }
+        }, "Renderer");
+        render.setDaemon(true);
+        render.start();
+    }
+
+    // Draw straight over the old image instead of clearing it first
+    public void update(Graphics g) {
+        paint(g);
     }
 
     public void paint(Graphics g) {
-		for (int u = 0; u < WIDTH; u++) {
-			for (int v = 0; v < HEIGHT; v++) {
-        		g.setColor(getColor(u, v));
-        		g.drawLine(u, v, u, v);
-			}
-		}
+        g.drawImage(image, 0, 0, null);
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * RenderCounters.java
+ * Description: Ray and intersection test counts for one render thread.
+ * Each thread only writes its own counters, so counting costs no
+ * synchronization and doesn't slow parallel renders down. A thread adds
+ * its counts to the shared totals whenever it finishes a render task
+ * (see TraceScratch.flush) and starts again from zero, so no list of
+ * threads' counters is kept and Statistics reads the totals directly.
+ * Extra samples traced while anti-aliasing a pixel (see AntiAliaser)
+ * add their rays and tests to that pixel's, but are not pixels
+ * themselves.
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class RenderCounters {
+	public static final int MAX_TESTS = 4096;	// tests per pixel counted exactly
+	private static final LongAdder PIXELS = new LongAdder();	// totals flushed by all threads
+	private static final LongAdder SAMPLES = new LongAdder();
+	private static final LongAdder PRIMARY_RAYS = new LongAdder();
+	private static final LongAdder SHADOW_RAYS = new LongAdder();
+	private static final LongAdder EMPTY_LEAF_PIXELS = new LongAdder();
+	private static final LongAdder TESTS = new LongAdder();
+	private static final AtomicLong MAX = new AtomicLong();
+	private static final AtomicLongArray HISTOGRAM = new AtomicLongArray(MAX_TESTS + 1);
+
+	private long pixels;			// pixels traced
+	private long samples;			// extra anti-aliasing samples traced
+	private long primaryRays;
+	private long shadowRays;		// shadow rays actually cast
+	private long emptyLeafPixels;	// pixels whose quadtree leaf holds no spheres
+	private long tests;				// sphere intersection tests, primary and shadow
+	private long maxTests;			// most tests made for one pixel
+	private long[] histogram;		// pixels by tests made, last bin MAX_TESTS or more
+	private int pixelTests;			// tests so far for the pixel being traced
+	private boolean sampling;		// tracing extra samples of a counted pixel
+
+	public RenderCounters() {
+		this.histogram = new long[MAX_TESTS + 1];
+	}
+
+	public void primaryRay() {
+		this.primaryRays++;
+	}
+
+	public void shadowRay() {
+		this.shadowRays++;
+	}
+
+	public void emptyLeaf() {
+		if (!this.sampling) {
+			this.emptyLeafPixels++;
+		}
+	}
+
+	// Count what is traced until endSamples as samples of a pixel
+	// already finished rather than as new pixels
+	public void beginSamples() {
+		this.sampling = true;
+	}
+
+	public void endSamples() {
+		this.sampling = false;
+	}
+
+	// Count intersection tests against the pixel being traced
+	public void tested(int spheres) {
+		this.pixelTests += spheres;
+	}
+
+	// Finish the pixel being traced, or one sample of it
+	public void endPixel() {
+		int n = this.pixelTests;
+		if (this.sampling) {
+			this.samples++;
+			this.tests += n;
+			this.pixelTests = 0;
+			return;
+		}
+		this.pixels++;
+		this.tests += n;
+		if (n > this.maxTests) {
+			this.maxTests = n;
+		}
+		this.histogram[Math.min(n, MAX_TESTS)]++;
+		this.pixelTests = 0;
+	}
+
+	// Add this thread's counts to the totals and start again from zero.
+	// Only histogram bins up to the most tests seen can be set.
+	public void flush() {
+		if (this.pixels == 0 && this.primaryRays == 0 && this.shadowRays == 0) {
+			return;
+		}
+		PIXELS.add(this.pixels);
+		SAMPLES.add(this.samples);
+		PRIMARY_RAYS.add(this.primaryRays);
+		SHADOW_RAYS.add(this.shadowRays);
+		EMPTY_LEAF_PIXELS.add(this.emptyLeafPixels);
+		TESTS.add(this.tests);
+		long max = this.maxTests;
+		long most = MAX.get();
+		while (max > most && !MAX.compareAndSet(most, max)) {
+			most = MAX.get();
+		}
+		for (int i = 0; i <= Math.min(max, MAX_TESTS); i++) {
+			if (this.histogram[i] != 0) {
+				HISTOGRAM.addAndGet(i, this.histogram[i]);
+				this.histogram[i] = 0;
+			}
+		}
+		this.pixels = 0;
+		this.samples = 0;
+		this.primaryRays = 0;
+		this.shadowRays = 0;
+		this.emptyLeafPixels = 0;
+		this.tests = 0;
+		this.maxTests = 0;
+	}
+
+	//////////////////////////////////////////////////////////////////
+	//				COUNTERS SUMMED OVER ALL RENDER THREADS			//
+	//////////////////////////////////////////////////////////////////
+	public static long totalPixels() {
+		return PIXELS.sum();
+	}
+
+	public static long totalSamples() {
+		return SAMPLES.sum();
+	}
+
+	public static long totalPrimaryRays() {
+		return PRIMARY_RAYS.sum();
+	}
+
+	public static long totalShadowRays() {
+		return SHADOW_RAYS.sum();
+	}
+
+	public static long totalEmptyLeafPixels() {
+		return EMPTY_LEAF_PIXELS.sum();
+	}
+
+	public static long totalTests() {
+		return TESTS.sum();
+	}
+
+	public static long maxTests() {
+		return MAX.get();
+	}
+
+	// Fewest tests made for at least fraction q of the pixels, from
+	// the merged histogram. Exact below MAX_TESTS.
+	public static long testsPercentile(double q) {
+		long pixels = 0;
+		for (int i = 0; i <= MAX_TESTS; i++) {
+			pixels += HISTOGRAM.get(i);
+		}
+		long rank = (long) Math.ceil(q * pixels);
+		long seen = 0;
+		for (int i = 0; i < MAX_TESTS; i++) {
+			seen += HISTOGRAM.get(i);
+			if (seen >= rank) {
+				return i;
+			}
+		}
+		return maxTests();
+	}
+
+	// Zero the counters; only call while no frame is being rendered
+	public static void resetCounters() {
+		PIXELS.reset();
+		SAMPLES.reset();
+		PRIMARY_RAYS.reset();
+		SHADOW_RAYS.reset();
+		EMPTY_LEAF_PIXELS.reset();
+		TESTS.reset();
+		MAX.set(0);
+		for (int i = 0; i <= MAX_TESTS; i++) {
+			HISTOGRAM.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * RenderMetrics.java
+ * Description: Publishes render progress and throughput over JMX as
+ * raytrace:type=RenderMetrics, read from the RenderCounters totals.
+ * Counts cover the frame in progress, up to the last render task each
+ * thread finished, since drivers reset the counters between frames.
+ * Rates are measured over the last sampling interval of at least a
+ * second.
+ */
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+public class RenderMetrics implements RenderMetricsMBean {
+	public static final String NAME = "raytrace:type=RenderMetrics";
+	private static final long INTERVAL = 1000000000L;	// nanoseconds between samples
+	private static RenderMetrics registered;
+
+	private long sampleTime;
+	private long sampleRays, sampleTests;
+	private double raysPerSecond, testsPerSecond;
+
+	private RenderMetrics() {
+		this.sampleTime = System.nanoTime();
+	}
+
+	// Register with the platform MBean server, once per JVM
+	public static synchronized void register() {
+		if (registered != null) {
+			return;
+		}
+		try {
+			RenderMetrics metrics = new RenderMetrics();
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(NAME));
+			registered = metrics;
+		} catch (JMException e) {
+			System.err.println("Could not register render metrics: " + e);
+		}
+	}
+
+	public long getPixelsCompleted() {
+		return RenderCounters.totalPixels();
+	}
+
+	public long getRaysCast() {
+		return RenderCounters.totalPrimaryRays() + RenderCounters.totalShadowRays();
+	}
+
+	public long getIntersectionTests() {
+		return RenderCounters.totalTests();
+	}
+
+	public synchronized double getRaysPerSecond() {
+		sample();
+		return this.raysPerSecond;
+	}
+
+	public synchronized double getTestsPerSecond() {
+		sample();
+		return this.testsPerSecond;
+	}
+
+	private void sample() {
+		long now = System.nanoTime();
+		long elapsed = now - this.sampleTime;
+		if (elapsed < INTERVAL) {
+			return;
+		}
+		long rays = getRaysCast();
+		long tests = getIntersectionTests();
+		// Counters reset since the last sample count from zero
+		long newRays = (rays >= this.sampleRays) ? rays - this.sampleRays : rays;
+		long newTests = (tests >= this.sampleTests) ? tests - this.sampleTests : tests;
+		this.raysPerSecond = newRays * 1e9 / elapsed;
+		this.testsPerSecond = newTests * 1e9 / elapsed;
+		this.sampleTime = now;
+		this.sampleRays = rays;
+		this.sampleTests = tests;
+	}
+}
@@ -0,0 +1,15 @@
+/*
+ * RenderMetricsMBean.java
+ * Description: Management interface of RenderMetrics.
+ */
+public interface RenderMetricsMBean {
+	long getPixelsCompleted();
+
+	long getRaysCast();
+
+	long getIntersectionTests();
+
+	double getRaysPerSecond();
+
+	double getTestsPerSecond();
+}
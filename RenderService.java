@@ -0,0 +1,327 @@
+/*
+ * RenderService.java
+ * Description: Renders scenes over HTTP, on the JDK's built-in server.
+ * A scene is POSTed to /render in the binary SceneFile format, with the
+ * image size and tree settings in the query string, and the image is
+ * sent back as PNG or PPM:
+ *
+ *	curl --data-binary @scene.rtss -o out.png \
+ *		"http://localhost:8080/render?width=1920&height=1080&depth=7"
+ *
+ * The query parameters are width and height (512 by default), depth (7),
+ * leaf-capacity (0), bvh, linear, light=x,y,z (repeatable, see
+ * BatchRender) and format=png or ppm. Requests that could run the
+ * server out of memory are refused: images past MAX_PIXELS, trees
+ * deeper than MAX_TREE_DEPTH (MAX_LINEAR_DEPTH for linear trees) and
+ * scenes of more than MAX_SPHERES spheres. Built scenes are kept in a
+ * SceneCache under the SHA-256 of the scene file and the tree settings,
+ * so the same scene rendered again, at any size, is not built again;
+ * the X-Scene-Cache response header says whether it was. GET /stats
+ * reports the cache's size and hit counts as JSON.
+ *
+ * Each request is handled on its own virtual thread when the JDK has
+ * them, and on a pooled thread otherwise. All requests trace their
+ * tiles on the one ParallelRenderer, so concurrent renders share its
+ * threads instead of each starting a pool of its own.
+ *
+ * Usage:
+ *	java RenderService <port> [--threads n] [--cache-mb m]
+ */
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RenderService {
+	public static final int DEFAULT_SIZE = 512;
+	public static final int DEFAULT_DEPTH = 7;
+	public static final long MAX_PIXELS = 1L << 26;		// largest image, 8192 x 8192
+	public static final int MAX_TREE_DEPTH = 9;			// object quadtrees, 4^9 leaves each
+	public static final int MAX_LINEAR_DEPTH = 11;		// linear quadtrees, 4^11 leaves each
+	public static final int MAX_SPHERES = 1 << 22;
+	public static final long MAX_BODY_BYTES = SceneFile.HEADER_BYTES
+												+ (long) MAX_SPHERES * SceneFile.RECORD_BYTES;
+	private HttpServer server;
+	private ExecutorService requests;
+	private ParallelRenderer renderer;
+	private SceneCache cache;
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		RenderMetrics.register();
+		if (args.length < 1) {
+			usage();
+		}
+		int port = Integer.parseInt(args[0]);
+		int threads = Runtime.getRuntime().availableProcessors();
+		long cacheBytes = Runtime.getRuntime().maxMemory() / 4;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--cache-mb") && i + 1 < args.length) {
+				cacheBytes = Long.parseLong(args[++i]) << 20;
+			} else {
+				usage();
+			}
+		}
+		RenderService service = new RenderService(port, threads, cacheBytes);
+		service.start();
+		System.out.printf("Rendering on port %d with %d threads, %d MB scene cache%n",
+							service.getPort(), threads, cacheBytes >> 20);
+	}
+
+	public RenderService(int port, int threads, long cacheBytes) throws IOException {
+		this.renderer = new ParallelRenderer(threads);
+		this.cache = new SceneCache(cacheBytes);
+		this.requests = requestExecutor();
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.setExecutor(this.requests);
+		this.server.createContext("/render", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				render(exchange);
+			}
+		});
+		this.server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				stats(exchange);
+			}
+		});
+	}
+
+	public int getPort() { return this.server.getAddress().getPort(); }
+
+	public SceneCache getCache() { return this.cache; }
+
+	public void start() {
+		this.server.start();
+	}
+
+	// Stop taking requests, giving those under way a second to finish
+	public void stop() {
+		this.server.stop(1);
+		this.requests.shutdown();
+		this.renderer.shutdown();
+	}
+
+	// A virtual thread per request where the JDK has them (21 and
+	// later), found by reflection so this still builds for 17
+	private static ExecutorService requestExecutor() {
+		try {
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "render-request");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	private void render(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				reply(exchange, 405, "Scenes are POSTed to /render");
+				return;
+			}
+			Map<String, List<String>> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			final int width = intParam(query, "width", DEFAULT_SIZE);
+			final int height = intParam(query, "height", DEFAULT_SIZE);
+			final int depth = intParam(query, "depth", DEFAULT_DEPTH);
+			final int leafCapacity = intParam(query, "leaf-capacity", 0);
+			final boolean useBVH = query.containsKey("bvh");
+			final boolean linear = query.containsKey("linear");
+			String format = param(query, "format", "png");
+			if (width < 1 || height < 1 || (long) width * height > MAX_PIXELS) {
+				throw new IllegalArgumentException("Image must be at least 1 x 1 and at most "
+													+ MAX_PIXELS + " pixels");
+			}
+			int maxDepth = linear ? MAX_LINEAR_DEPTH : MAX_TREE_DEPTH;
+			if (depth < 0 || depth > maxDepth) {
+				throw new IllegalArgumentException("Depth must be between 0 and " + maxDepth);
+			}
+			if (!format.equals("png") && !format.equals("ppm")) {
+				throw new IllegalArgumentException("Format must be png or ppm");
+			}
+			List<String> directions = query.containsKey("light") ? query.get("light")
+																	: new ArrayList<String>();
+			final ArrayList<LightFrame> lights = new ArrayList<LightFrame>();
+			for (String direction : directions) {
+				lights.add(BatchRender.parseLight(direction));
+			}
+			if (lights.size() >= Scene.MAX_LIGHTS) {
+				throw new IllegalArgumentException("At most " + (Scene.MAX_LIGHTS - 1)
+													+ " lights can be added");
+			}
+
+			String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+			final byte[] body = readAll(exchange.getRequestBody(),
+										(declared == null) ? -1 : Long.parseLong(declared),
+										MAX_BODY_BYTES);
+			if (body == null) {
+				reply(exchange, 413, "Scenes can have at most " + MAX_SPHERES + " spheres");
+				return;
+			}
+			String key = sha256(body) + "/" + depth + "/" + leafCapacity + "/" + useBVH + "/" + linear
+							+ "/" + String.join(";", directions);
+			final boolean[] built = new boolean[1];
+			long start = System.nanoTime();
+			Scene scene;
+			try {
+				scene = this.cache.get(key, new Callable<Scene>() {
+					public Scene call() throws IOException {
+						built[0] = true;
+						Scene scene = SceneFile.read(new ByteArrayInputStream(body), body.length,
+														depth, leafCapacity, useBVH, linear);
+						for (LightFrame light : lights) {
+							scene.addLight(light);
+						}
+						// Build the light trees now, so they are cached too;
+						// a BVH scene has none
+						if (scene.getBVH() == null) {
+							for (int light = 1; light < scene.getLightCount(); light++) {
+								scene.getLightTree(light);
+							}
+						}
+						return scene;
+					}
+				});
+			} catch (IOException e) {
+				reply(exchange, 400, "Could not read scene: " + e.getMessage());
+				return;
+			}
+			long ready = System.nanoTime();
+			int[] pixels = this.renderer.render(scene, width, height);
+			long done = System.nanoTime();
+
+			Headers headers = exchange.getResponseHeaders();
+			headers.set("Content-Type", format.equals("png") ? "image/png" : "image/x-portable-pixmap");
+			headers.set("X-Scene-Cache", built[0] ? "miss" : "hit");
+			headers.set("X-Build-Ms", String.format("%.1f", (ready - start) / 1e6));
+			headers.set("X-Render-Ms", String.format("%.1f", (done - ready) / 1e6));
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = new BufferedOutputStream(exchange.getResponseBody());
+			if (format.equals("png")) {
+				FrameWriter.writePNG(pixels, width, height, out);
+			} else {
+				FrameWriter.writePPM(pixels, width, height, out);
+			}
+			out.close();
+		} catch (IllegalArgumentException e) {
+			reply(exchange, 400, e.getMessage());
+		} catch (RuntimeException e) {
+			reply(exchange, 500, e.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void stats(HttpExchange exchange) throws IOException {
+		String json;
+		synchronized (this.cache) {
+			json = String.format("{\"scenes\": %d, \"bytes\": %d, \"budget\": %d, \"hits\": %d,"
+									+ " \"misses\": %d, \"evictions\": %d}%n",
+									this.cache.size(), this.cache.getUsed(), this.cache.getBudget(),
+									this.cache.getHits(), this.cache.getMisses(),
+									this.cache.getEvictions());
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		send(exchange, 200, json);
+	}
+
+	// Plain text reply, unless the response has already been started
+	private static void reply(HttpExchange exchange, int status, String message) throws IOException {
+		if (exchange.getResponseCode() != -1) {
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, message + "\n");
+	}
+
+	private static void send(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	// Parameters by name; one given without a value maps to ""
+	private static Map<String, List<String>> parseQuery(String query) throws IOException {
+		Map<String, List<String>> params = new HashMap<String, List<String>>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String name = URLDecoder.decode((eq < 0) ? pair : pair.substring(0, eq), "UTF-8");
+			String value = (eq < 0) ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			List<String> values = params.get(name);
+			if (values == null) {
+				values = new ArrayList<String>();
+				params.put(name, values);
+			}
+			values.add(value);
+		}
+		return params;
+	}
+
+	private static String param(Map<String, List<String>> query, String name, String otherwise) {
+		List<String> values = query.get(name);
+		return (values == null) ? otherwise : values.get(values.size() - 1);
+	}
+
+	private static int intParam(Map<String, List<String>> query, String name, int otherwise) {
+		List<String> values = query.get(name);
+		return (values == null) ? otherwise : Integer.parseInt(values.get(values.size() - 1));
+	}
+
+	// The whole body, or null if it runs past limit bytes. A body of
+	// known length (-1 if not) is read straight into an array that size.
+	private static byte[] readAll(InputStream in, long length, long limit) throws IOException {
+		if (length > limit) {
+			return null;
+		} else if (length >= 0) {
+			byte[] bytes = new byte[(int) length];
+			new DataInputStream(in).readFully(bytes);
+			return bytes;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			if (bytes.size() + n > limit) {
+				return null;
+			}
+			bytes.write(buffer, 0, n);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String sha256(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest(bytes)) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java RenderService <port> [--threads n] [--cache-mb m]");
+		System.exit(1);
+	}
+}
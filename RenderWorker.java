@@ -0,0 +1,127 @@
+/*
+ * RenderWorker.java
+ * Description: Worker process for DistributedRenderer. Connects to the
+ * coordinator, builds each scene it is sent with its own quadtrees (or
+ * BVH), and traces the tiles it is handed on a ParallelRenderer,
+ * sending each back as soon as it is done. Exits when the coordinator
+ * says goodbye or goes away.
+ *
+ * Usage:
+ *	java RenderWorker <host> <port> [--threads n]
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+public class RenderWorker {
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		if (args.length < 2) {
+			usage();
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				usage();
+			}
+		}
+
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		ParallelRenderer renderer = new ParallelRenderer(threads);
+		try {
+			serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+					new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())),
+					renderer);
+		} catch (EOFException e) {
+			// coordinator went away
+		} finally {
+			renderer.shutdown();
+			socket.close();
+		}
+	}
+
+	private static void serve(DataInputStream in, DataOutputStream out, ParallelRenderer renderer)
+			throws IOException {
+		Scene scene = null;
+		int number = 0;
+		int width = 0, height = 0, tile = 0;
+		int[] pixels = null;
+		while (true) {
+			byte type = in.readByte();
+			if (type == DistributedRenderer.SCENE) {
+				number = in.readInt();
+				width = in.readInt();
+				height = in.readInt();
+				tile = in.readInt();
+				int treeDepth = in.readInt();
+				int leafCapacity = in.readInt();
+				boolean useBVH = in.readBoolean();
+				boolean linear = in.readBoolean();
+				int lights = in.readInt();
+				nTuple[] directions = new nTuple[lights];
+				for (int i = 0; i < lights; i++) {
+					directions[i] = new nTuple(in.readFloat(), in.readFloat(), in.readFloat());
+				}
+				scene = SceneFile.read(in, treeDepth, leafCapacity, useBVH, linear);
+				for (nTuple dir : directions) {
+					scene.addLight(LightFrame.toward(dir));
+				}
+				pixels = new int[width * height];
+			} else if (type == DistributedRenderer.TILE) {
+				int tileNumber = in.readInt();
+				int t = in.readInt();
+				if (scene == null || tileNumber != number) {
+					throw new IOException("Tile " + t + " sent before its scene");
+				}
+				int[] tilePixels = trace(scene, renderer, pixels, width, height, tile, t);
+				ByteBuffer bytes = ByteBuffer.allocate(4 * tilePixels.length);
+				bytes.asIntBuffer().put(tilePixels);
+				out.writeByte(DistributedRenderer.RESULT);
+				out.writeInt(number);
+				out.writeInt(t);
+				out.writeInt(tilePixels.length);
+				out.write(bytes.array());
+				out.flush();
+			} else if (type == DistributedRenderer.BYE) {
+				return;
+			} else {
+				throw new IOException("Unexpected message " + type + " from coordinator");
+			}
+		}
+	}
+
+	// Trace tile t, in ParallelRenderer.MIN_TILE pieces so all of the
+	// renderer's threads share it, and return its pixels row by row
+	private static int[] trace(Scene scene, ParallelRenderer renderer, int[] pixels, int width,
+								int height, int tile, int t) {
+		int across = (width + tile - 1) / tile;
+		int u0 = (t % across) * tile, v0 = (t / across) * tile;
+		int u1 = Math.min(u0 + tile, width), v1 = Math.min(v0 + tile, height);
+		int piece = ParallelRenderer.MIN_TILE;
+		int piecesAcross = (width + piece - 1) / piece;
+		int[] pieces = new int[((tile + piece - 1) / piece) * ((tile + piece - 1) / piece)];
+		int count = 0;
+		for (int v = v0; v < v1; v += piece) {
+			for (int u = u0; u < u1; u += piece) {
+				pieces[count++] = (v / piece) * piecesAcross + u / piece;
+			}
+		}
+		renderer.renderTiles(scene, pixels, width, height, piece, pieces, count);
+
+		int[] tilePixels = new int[(u1 - u0) * (v1 - v0)];
+		for (int v = v0; v < v1; v++) {
+			System.arraycopy(pixels, v * width + u0, tilePixels, (v - v0) * (u1 - u0), u1 - u0);
+		}
+		return tilePixels;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java RenderWorker <host> <port> [--threads n]");
+		System.exit(1);
+	}
+}
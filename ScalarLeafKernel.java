@@ -0,0 +1,52 @@
+/*
+ * ScalarLeafKernel.java
+ * Description: LeafKernel that tests one sphere at a time. Used when
+ * the Vector API is not available.
+ */
+public class ScalarLeafKernel extends LeafKernel {
+	public String getName() { return "scalar"; }
+
+	public int nearest(LeafPack pack, float ox, float oy, float oz,
+						float dx, float dy, float dz, float tMin,
+						TraceScratch scratch) {
+		float[] d = pack.getData();
+		int stride = pack.getStride();
+		float closest = Float.POSITIVE_INFINITY;
+		int closestIndex = -1;
+		for (int i = 0; i < pack.size(); i++) {
+			float t = intersect(d, stride, i, ox, oy, oz, dx, dy, dz);
+			if (t > tMin && t < closest) {
+				closest = t;
+				closestIndex = i;
+			}
+		}
+		scratch.hitDistance = closest;
+		return closestIndex;
+	}
+
+	public int anyHit(LeafPack pack, float ox, float oy, float oz,
+						float dx, float dy, float dz) {
+		float[] d = pack.getData();
+		int stride = pack.getStride();
+		for (int i = 0; i < pack.size(); i++) {
+			if (intersect(d, stride, i, ox, oy, oz, dx, dy, dz) > 0.0f) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static float intersect(float[] d, int stride, int i, float ox, float oy, float oz,
+									float dx, float dy, float dz) {
+		float qx = ox - d[i];
+		float qy = oy - d[stride + i];
+		float qz = oz - d[2 * stride + i];
+		float b = 2.0f * (qx * dx + qy * dy + qz * dz);
+		float c = (qx * qx + qy * qy + qz * qz) - d[3 * stride + i];
+		float discriminant = (b*b) - 4.0f*c;
+		if (discriminant < 0.0f) {
+			return -1.0f;
+		}
+		return 0.5f * (-b - (float) Math.sqrt(discriminant));
+	}
+}
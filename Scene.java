@@ -0,0 +1,338 @@
+/*
+ * Scene.java
+ * Description: The spheres being rendered along with the quadtrees
+ * built over them and the lights shining on them. Keeping these
+ * together lets the window and the headless renderers share the same
+ * setup code.
+ *
+ * Light 0 is always RayTraceShadows.LIGHT, whose shadows are found
+ * through the shadow tree (or BVH) kept up to date with the spheres.
+ * Each light added after it gets its own linear quadtree in its own
+ * light space. Those are built the first time any of them is needed,
+ * all in parallel, and dropped whenever the spheres change. Scenes
+ * traced through a BVH find every light's shadows through the BVH and
+ * build no light trees.
+ */
+import java.nio.FloatBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Scene {
+	public static final int MAX_LIGHTS = 32;	// shadow states fit in an int mask
+	private static final int LIGHT_TREE_LEVEL = 10;	// deepest tree built for a light after the first
+	private static final AtomicLong EPOCHS = new AtomicLong();
+	private final long epoch = EPOCHS.incrementAndGet();
+	private ArrayList<Sphere> spheres;
+	private SphereStore store;
+	private Quadtree tree;
+	private Quadtree shadowTree;
+	private BVH bvh;
+	private LinearQuadtree linearTree;
+	private LinearQuadtree linearShadowTree;
+	private ArrayList<LightFrame> lights;
+	private volatile LightTreeBuild[] lightTrees;	// by light, null until first needed
+
+	public ArrayList<Sphere> getSpheres() { return this.spheres; }
+
+	// Number no other scene has, so per-thread caches can tell scenes
+	// apart without holding on to them
+	public long getEpoch() { return this.epoch; }
+
+	public SphereStore getStore() { return this.store; }
+
+	public Quadtree getTree() { return this.tree; }
+
+	public Quadtree getShadowTree() { return this.shadowTree; }
+
+	// Non-null when rays are traced through the BVH instead of the quadtrees
+	public BVH getBVH() { return this.bvh; }
+
+	// Non-null when rays are traced through linear quadtrees
+	public LinearQuadtree getLinearTree() { return this.linearTree; }
+
+	public LinearQuadtree getLinearShadowTree() { return this.linearShadowTree; }
+
+	public int getLightCount() { return this.lights.size(); }
+
+	public LightFrame getLight(int light) { return this.lights.get(light); }
+
+	public List<LightFrame> getLights() { return this.lights; }
+
+	public Scene(int treeDepth) {
+		this(treeDepth, 0, false);
+	}
+
+	// A leafCapacity above 0 builds adaptive quadtrees, with treeDepth
+	// as their maximum depth. With useBVH set, no quadtrees are built;
+	// call buildBVH (or buildLinear) once all spheres have been added.
+	public Scene(int treeDepth, int leafCapacity, boolean useBVH) {
+		float sz = RayTraceShadows.IMG_PLANE_SZ;
+		this.spheres = new ArrayList<Sphere>();
+		this.store = new SphereStore();
+		this.lights = new ArrayList<LightFrame>();
+		this.lights.add(RayTraceShadows.LIGHT_FRAME);
+		if (!useBVH) {
+			this.tree = new Quadtree(-sz, -sz, sz, sz, treeDepth,
+										RayTraceShadows.CAM_Z, leafCapacity, this.store);
+			this.shadowTree = new Quadtree(-sz * 5, -sz * 5, sz * 5, sz * 5, treeDepth,
+											RayTraceShadows.CAM_Z, leafCapacity, this.store);
+		}
+	}
+
+	// Build a scene of randomly placed spheres
+	public static Scene random(int numSpheres, int treeDepth) {
+		return random(numSpheres, treeDepth, 0, false);
+	}
+
+	public static Scene random(int numSpheres, int treeDepth, int leafCapacity, boolean useBVH) {
+		return random(numSpheres, treeDepth, leafCapacity, useBVH, false);
+	}
+
+	// Random scene traced through linear quadtrees of the given depth
+	public static Scene randomLinear(int numSpheres, int treeDepth) {
+		return random(numSpheres, treeDepth, 0, false, true);
+	}
+
+	private static Scene random(int numSpheres, int treeDepth, int leafCapacity, boolean useBVH,
+								boolean linear) {
+		TreeBuildEvent event = new TreeBuildEvent();
+		event.begin();
+		Scene scene = new Scene(treeDepth, leafCapacity, useBVH || linear);
+		Sphere[] spheres = new Sphere[numSpheres];
+		for (int i = 0; i < numSpheres; i++) {
+			spheres[i] = RayTraceShadows.randSphere(RayTraceShadows.LIGHT_FRAME);
+		}
+		scene.addSpheres(spheres);
+		scene.sortLeaves();
+		if (useBVH) {
+			scene.buildBVH();
+		} else if (linear) {
+			scene.buildLinear(treeDepth);
+		}
+		scene.commitBuild(event);
+		return scene;
+	}
+
+	public void addSphere(Sphere s) {
+		this.lightTrees = null;
+		int id = this.store.add(s);
+		if (this.tree != null) {
+			this.tree.addSphere(id);
+			this.shadowTree.addShadowSphere(id);
+		}
+		this.spheres.add(s);
+	}
+
+	// Move a sphere, taking it out of and putting it back into only the
+	// quadtree leaves its old and new bounds overlap. A BVH or linear
+	// quadtrees are not updated; build them again once the frame's
+	// spheres have all moved.
+	public void moveSphere(Sphere s, float x, float y, float z) {
+		this.lightTrees = null;
+		if (this.tree != null) {
+			this.tree.removeSphere(s.getId());
+			this.shadowTree.removeShadowSphere(s.getId());
+		}
+		s.moveTo(x, y, z, RayTraceShadows.LIGHT_FRAME);
+		this.store.set(s.getId(), s);
+		if (this.tree != null) {
+			this.tree.addSphere(s.getId());
+			this.shadowTree.addShadowSphere(s.getId());
+		}
+	}
+
+	// Add many spheres at once. The two quadtrees are filled at the same
+	// time, each through Quadtree.addSpheres, and come out the same as
+	// adding the spheres one by one.
+	public void addSpheres(Sphere[] batch) {
+		this.lightTrees = null;
+		int first = this.store.size();
+		this.store.ensureCapacity(first + batch.length);
+		for (Sphere s : batch) {
+			this.store.add(s);
+		}
+		this.spheres.addAll(Arrays.asList(batch));
+		loadTrees(first, batch.length);
+	}
+
+	// Add count spheres from their attributes, laid out as SceneFile
+	// records (x, y, z, radius, r, g, b) from index 0 of the buffer, as
+	// addSpheres does. Only their SphereStore entries are made; they
+	// have no Sphere object, so cannot be moved. The store grows as
+	// needed; reserve room first when the total is known.
+	public void addSpheres(FloatBuffer attributes, int count) {
+		this.lightTrees = null;
+		int first = this.store.size();
+		for (int i = 0, f = 0; i < count; i++, f += SceneFile.RECORD_FLOATS) {
+			this.store.add(attributes.get(f), attributes.get(f + 1), attributes.get(f + 2),
+							attributes.get(f + 3), attributes.get(f + 4), attributes.get(f + 5),
+							attributes.get(f + 6), RayTraceShadows.LIGHT_FRAME);
+		}
+		loadTrees(first, count);
+	}
+
+	// Bulk load store spheres first .. first + count - 1 into both
+	// quadtrees at once
+	private void loadTrees(final int first, final int count) {
+		if (this.tree == null) {
+			return;
+		}
+		ForkJoinTask.invokeAll(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			protected void compute() {
+				tree.addSpheres(first, count, false);
+			}
+		}, new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			protected void compute() {
+				shadowTree.addSpheres(first, count, true);
+			}
+		});
+	}
+
+	// Make room for numSpheres more spheres added by their attributes
+	public void reserve(int numSpheres) {
+		this.store.ensureCapacity(this.store.size() + numSpheres);
+	}
+
+	// Sort the quadtree leaves so searches through them can stop early
+	// (see Quadtree.sortLeaves), both trees at once. Call it once the
+	// spheres are in, and again after moving some; only the leaves that
+	// gained a sphere are sorted again. Pack the leaves afterwards.
+	public void sortLeaves() {
+		if (this.tree == null) {
+			return;
+		}
+		ForkJoinTask.invokeAll(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			protected void compute() {
+				tree.sortLeaves(false);
+			}
+		}, new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			protected void compute() {
+				shadowTree.sortLeaves(true);
+			}
+		});
+	}
+
+	// Pack the quadtree leaves for a LeafKernel
+	public void packLeaves() {
+		if (this.tree != null) {
+			this.tree.packLeaves();
+			this.shadowTree.packLeaves();
+		}
+	}
+
+	// Fill in and record a build event begun before the spheres were added
+	public void commitBuild(TreeBuildEvent event) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.spheres = this.store.size();
+			if (this.tree != null) {
+				event.depth = this.tree.getLevel();
+			} else if (this.linearTree != null) {
+				event.depth = this.linearTree.getLevel();
+			}
+			event.bvh = (this.bvh != null);
+			event.commit();
+		}
+	}
+
+	public void buildBVH() {
+		this.lightTrees = null;
+		this.bvh = new BVH(this.store);
+	}
+
+	// Build linear quadtrees over the spheres in the store, both at once,
+	// replacing any object quadtrees
+	public void buildLinear(final int treeDepth) {
+		final float sz = RayTraceShadows.IMG_PLANE_SZ;
+		final float camZ = RayTraceShadows.CAM_Z;
+		this.lightTrees = null;
+		this.tree = null;
+		this.shadowTree = null;
+		ForkJoinTask.invokeAll(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			protected void compute() {
+				linearTree = new LinearQuadtree(-sz, -sz, sz, sz, treeDepth, camZ, store, false);
+			}
+		}, new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			protected void compute() {
+				linearShadowTree = new LinearQuadtree(-sz * 5, -sz * 5, sz * 5, sz * 5, treeDepth,
+														camZ, store, true);
+			}
+		});
+	}
+
+	// Add a directional light; see LightFrame.toward
+	public void addLight(LightFrame light) {
+		if (this.lights.size() == MAX_LIGHTS) {
+			throw new IllegalArgumentException("A scene can have at most " + MAX_LIGHTS + " lights");
+		}
+		this.lights.add(light);
+		this.lightTrees = null;
+	}
+
+	// Shadow tree of a light after the first, or null in a BVH scene.
+	// Every such light's tree is forked the first time one is asked for;
+	// a render thread waiting on them helps build them rather than
+	// blocking.
+	public LinearQuadtree getLightTree(int light) {
+		if (this.bvh != null) {
+			return null;
+		}
+		LightTreeBuild[] builds = this.lightTrees;
+		if (builds == null) {
+			builds = startLightTrees();
+		}
+		return builds[light].join();
+	}
+
+	private synchronized LightTreeBuild[] startLightTrees() {
+		if (this.lightTrees != null) {
+			return this.lightTrees;
+		}
+		int level = 0;		// no tree built yet
+		if (this.tree != null) {
+			level = Math.min(this.tree.getLevel(), LIGHT_TREE_LEVEL);
+		} else if (this.linearTree != null) {
+			level = Math.min(this.linearTree.getLevel(), LIGHT_TREE_LEVEL);
+		}
+		LightTreeBuild[] builds = new LightTreeBuild[this.lights.size()];
+		for (int light = 1; light < builds.length; light++) {
+			builds[light] = new LightTreeBuild(this.store, this.lights.get(light), level);
+			builds[light].fork();
+		}
+		this.lightTrees = builds;
+		return builds;
+	}
+
+	// Sphere ids are handed out in the order spheres are added. Spheres
+	// added by their attributes have no Sphere object.
+	public Sphere getSphere(int id) {
+		return this.spheres.get(id);
+	}
+
+	// Builds one light's shadow tree over the same square as shadowTree
+	private static class LightTreeBuild extends RecursiveTask<LinearQuadtree> {
+		private static final long serialVersionUID = 1L;
+		private SphereStore store;
+		private LightFrame light;
+		private int level;
+
+		LightTreeBuild(SphereStore store, LightFrame light, int level) {
+			this.store = store;
+			this.light = light;
+			this.level = level;
+		}
+
+		@Override
+		protected LinearQuadtree compute() {
+			float sz = 5 * RayTraceShadows.IMG_PLANE_SZ;
+			return new LinearQuadtree(-sz, -sz, sz, sz, this.level, this.store, this.light);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * SceneCache.java
+ * Description: Built scenes kept between renders, so a scene rendered
+ * again (at any resolution) skips reading the spheres and building its
+ * trees. Entries are looked up by a key naming the scene and the
+ * settings its trees were built with, and the least recently used are
+ * dropped once the estimated size of all of them passes the budget.
+ * The cache holds the only lasting references to its scenes (the
+ * per-thread ShadowCache keeps a scene's epoch, not the scene), so a
+ * dropped scene is freed once the renders using it finish. The scene
+ * just built is kept even when it alone is over the budget.
+ *
+ * A scene asked for while another thread is still building it is not
+ * built twice; the second caller waits for the first build instead.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SceneCache {
+	// Estimated bytes per object, for a 64-bit JVM with compressed pointers
+	private static final int SPHERE_BYTES = 144;		// Sphere, its three nTuples and list slot
+	private static final int STORE_BYTES = 44;			// SphereStore columns per sphere
+	private static final int NODE_BYTES = 64;			// Quadtree node
+	private static final int ENTRY_BYTES = 24;			// SphereList link
+	private static final int BVH_NODE_BYTES = 32;		// bounds, first and count per BVH node
+
+	private long budget;			// bytes
+	private long used;
+	private LinkedHashMap<String, Entry> entries;	// least recently used first
+	private long hits, misses, evictions;
+
+	public SceneCache(long budget) {
+		this.budget = budget;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	public synchronized long getBudget() { return this.budget; }
+
+	public synchronized long getUsed() { return this.used; }
+
+	public synchronized int size() { return this.entries.size(); }
+
+	public synchronized long getHits() { return this.hits; }
+
+	public synchronized long getMisses() { return this.misses; }
+
+	public synchronized long getEvictions() { return this.evictions; }
+
+	// The scene cached under key, built with builder (on this thread)
+	// if it is not there yet. A build that fails is not cached.
+	public Scene get(String key, Callable<Scene> builder) throws IOException {
+		Entry entry;
+		boolean build = false;
+		synchronized (this) {
+			entry = this.entries.get(key);
+			if (entry == null) {
+				entry = new Entry(builder);
+				this.entries.put(key, entry);
+				this.misses++;
+				build = true;
+			} else {
+				this.hits++;
+			}
+		}
+		if (build) {
+			entry.build.run();
+		}
+		Scene scene;
+		try {
+			scene = entry.build.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for scene build");
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				if (this.entries.get(key) == entry) {
+					this.entries.remove(key);
+				}
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Could not build scene", e.getCause());
+		}
+		if (build) {
+			long bytes = estimateBytes(scene);
+			synchronized (this) {
+				if (this.entries.get(key) == entry) {
+					entry.bytes = bytes;
+					this.used += bytes;
+					evict(entry);
+				}
+			}
+		}
+		return scene;
+	}
+
+	// Drop least recently used scenes until the rest fit, keeping the
+	// one just added and any still being built
+	private void evict(Entry added) {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.used > this.budget && it.hasNext()) {
+			Entry e = it.next();
+			if (e != added && e.build.isDone() && e.bytes > 0) {
+				this.used -= e.bytes;
+				this.evictions++;
+				it.remove();
+			}
+		}
+	}
+
+	// Rough heap held by a scene's spheres, trees and light trees
+	public static long estimateBytes(Scene scene) {
+		int spheres = scene.getStore().size();
+		long bytes = (long) STORE_BYTES * spheres + (long) SPHERE_BYTES * scene.getSpheres().size();
+		if (scene.getTree() != null) {
+			bytes += estimateBytes(scene.getTree()) + estimateBytes(scene.getShadowTree());
+		}
+		if (scene.getLinearTree() != null) {
+			bytes += estimateBytes(scene.getLinearTree()) + estimateBytes(scene.getLinearShadowTree());
+		}
+		if (scene.getBVH() != null) {
+			bytes += (long) BVH_NODE_BYTES * scene.getBVH().getNodeCount() + 4L * spheres;
+		} else {
+			for (int light = 1; light < scene.getLightCount(); light++) {
+				bytes += estimateBytes(scene.getLightTree(light));
+			}
+		}
+		return bytes;
+	}
+
+	private static long estimateBytes(Quadtree tree) {
+		ArrayList<Quadtree> leaves = new ArrayList<Quadtree>();
+		tree.getLeaves(leaves);
+		long entries = 0;
+		for (Quadtree leaf : leaves) {
+			entries += leaf.getCount();
+		}
+		// A full quadtree has a third as many inner nodes as leaves
+		return (long) NODE_BYTES * (leaves.size() + leaves.size() / 3) + ENTRY_BYTES * entries;
+	}
+
+	private static long estimateBytes(LinearQuadtree tree) {
+		if (tree == null) {
+			return 0;
+		}
+		return 4L * (tree.getLeafCount() + 1) + 4L * tree.getIds().length;
+	}
+
+	private static class Entry {
+		final FutureTask<Scene> build;
+		long bytes;			// 0 until built
+
+		Entry(Callable<Scene> builder) {
+			this.build = new FutureTask<Scene>(builder);
+		}
+	}
+}
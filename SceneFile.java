@@ -0,0 +1,220 @@
+/*
+ * SceneFile.java
+ * Description: Reads and writes scenes in a compact binary format
+ * through memory-mapped file channels, so scenes of tens of millions of
+ * spheres load in seconds.
+ *
+ * The file is a 16 byte header followed by one record per sphere, all
+ * little-endian:
+ *	int magic ("RTSS"), int version, long sphere count
+ *	float x, y, z, radius, red, green, blue		(28 bytes per sphere)
+ *
+ * Records are read straight from the mapped buffer into the scene's
+ * SphereStore, and the quadtrees (if any) are bulk loaded with their
+ * store ids, so no object is created per sphere. The same format can
+ * be written to and read from a stream, which is how
+ * DistributedRenderer ships scenes to its workers.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+
+public class SceneFile {
+	public static final int MAGIC = 0x52545353;		// "RTSS"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 16;
+	public static final int RECORD_FLOATS = 7;
+	public static final int RECORD_BYTES = 4 * RECORD_FLOATS;
+	// Records mapped at a time; a single mapping is limited to 2 GB
+	private static final int CHUNK_RECORDS = (1 << 30) / RECORD_BYTES;
+	private static final int STREAM_RECORDS = 1 << 16;	// records buffered at a time on a stream
+
+	// Write every sphere in the scene's store
+	public static void write(Scene scene, File file) throws IOException {
+		SphereStore store = scene.getStore();
+		int count = store.size();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+												StandardOpenOption.TRUNCATE_EXISTING,
+												StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putLong(count).flip();
+			while (header.hasRemaining()) {
+				channel.write(header, HEADER_BYTES - header.remaining());
+			}
+			for (int first = 0; first < count; first += CHUNK_RECORDS) {
+				int records = Math.min(CHUNK_RECORDS, count - first);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+						HEADER_BYTES + (long) first * RECORD_BYTES, (long) records * RECORD_BYTES);
+				FloatBuffer floats = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+				for (int i = 0; i < records; i++) {
+					int id = first + i;
+					floats.put(store.getCenterX(id));
+					floats.put(store.getCenterY(id));
+					floats.put(store.getCenterZ(id));
+					floats.put(store.getRadius(id));
+					floats.put(store.getRed(id));
+					floats.put(store.getGreen(id));
+					floats.put(store.getBlue(id));
+				}
+				mapped.force();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Write every sphere in the scene's store to a stream, in the same
+	// format as a file. The stream is left open.
+	public static void write(Scene scene, OutputStream out) throws IOException {
+		SphereStore store = scene.getStore();
+		int count = store.size();
+		WritableByteChannel channel = Channels.newChannel(out);
+		ByteBuffer buffer = ByteBuffer.allocate(STREAM_RECORDS * RECORD_BYTES)
+										.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(count).flip();
+		writeFully(channel, buffer);
+		for (int first = 0; first < count; first += STREAM_RECORDS) {
+			int records = Math.min(STREAM_RECORDS, count - first);
+			buffer.clear();
+			for (int id = first; id < first + records; id++) {
+				buffer.putFloat(store.getCenterX(id));
+				buffer.putFloat(store.getCenterY(id));
+				buffer.putFloat(store.getCenterZ(id));
+				buffer.putFloat(store.getRadius(id));
+				buffer.putFloat(store.getRed(id));
+				buffer.putFloat(store.getGreen(id));
+				buffer.putFloat(store.getBlue(id));
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+		}
+		out.flush();
+	}
+
+	// Read a scene written by write(Scene, OutputStream), building its
+	// trees as in read(File, ...). Reads no further than the last record.
+	public static Scene read(InputStream in, int treeDepth, int leafCapacity, boolean useBVH,
+								boolean linear) throws IOException {
+		return read(in, -1, treeDepth, leafCapacity, useBVH, linear);
+	}
+
+	// Same, from a stream holding length bytes. A header claiming more
+	// records than that is rejected before any room is made for them.
+	// With length -1 (not known) room is made as the records arrive.
+	public static Scene read(InputStream in, long length, int treeDepth, int leafCapacity,
+								boolean useBVH, boolean linear) throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocate(STREAM_RECORDS * RECORD_BYTES)
+										.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.limit(HEADER_BYTES);
+		readFully(channel, buffer, "stream");
+		buffer.flip();
+		long count = readHeader(buffer, "stream");
+		if (count < 0 || count > Integer.MAX_VALUE
+				|| (length >= 0 && length < HEADER_BYTES + count * RECORD_BYTES)) {
+			throw new IOException("stream: truncated or corrupt scene");
+		}
+
+		TreeBuildEvent event = new TreeBuildEvent();
+		event.begin();
+		Scene scene = new Scene(treeDepth, leafCapacity, useBVH || linear);
+		scene.reserve((length >= 0) ? (int) count : (int) Math.min(count, STREAM_RECORDS));
+		for (long first = 0; first < count; first += STREAM_RECORDS) {
+			int records = (int) Math.min(STREAM_RECORDS, count - first);
+			buffer.clear();
+			buffer.limit(records * RECORD_BYTES);
+			readFully(channel, buffer, "stream");
+			buffer.flip();
+			scene.addSpheres(buffer.asFloatBuffer(), records);
+		}
+		finish(scene, treeDepth, useBVH, linear, event);
+		return scene;
+	}
+
+	// Load a scene, building its quadtrees (or its BVH) as the records
+	// are read
+	public static Scene read(File file, int treeDepth, int leafCapacity, boolean useBVH)
+			throws IOException {
+		return read(file, treeDepth, leafCapacity, useBVH, false);
+	}
+
+	// Load a scene traced through linear quadtrees of the given depth
+	public static Scene readLinear(File file, int treeDepth) throws IOException {
+		return read(file, treeDepth, 0, false, true);
+	}
+
+	private static Scene read(File file, int treeDepth, int leafCapacity, boolean useBVH,
+								boolean linear) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, HEADER_BYTES - header.remaining()) < 0) {
+					throw new EOFException(file + ": not a scene file");
+				}
+			}
+			header.flip();
+			long count = readHeader(header, file.toString());
+			if (count < 0 || count > Integer.MAX_VALUE
+					|| channel.size() < HEADER_BYTES + count * RECORD_BYTES) {
+				throw new IOException(file + ": truncated or corrupt scene file");
+			}
+
+			TreeBuildEvent event = new TreeBuildEvent();
+			event.begin();
+			Scene scene = new Scene(treeDepth, leafCapacity, useBVH || linear);
+			scene.reserve((int) count);
+			for (long first = 0; first < count; first += CHUNK_RECORDS) {
+				int records = (int) Math.min(CHUNK_RECORDS, count - first);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_BYTES + first * RECORD_BYTES, (long) records * RECORD_BYTES);
+				FloatBuffer floats = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+				scene.addSpheres(floats, records);
+			}
+			finish(scene, treeDepth, useBVH, linear, event);
+			return scene;
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Check the magic number and version, returning the sphere count
+	private static long readHeader(ByteBuffer header, String name) throws IOException {
+		if (header.getInt() != MAGIC) {
+			throw new IOException(name + ": not a scene file");
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException(name + ": unsupported scene file version " + version);
+		}
+		return header.getLong();
+	}
+
+	private static void finish(Scene scene, int treeDepth, boolean useBVH, boolean linear,
+								TreeBuildEvent event) {
+		scene.sortLeaves();
+		if (useBVH) {
+			scene.buildBVH();
+		} else if (linear) {
+			scene.buildLinear(treeDepth);
+		}
+		scene.commitBuild(event);
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer, String name)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException(name + ": truncated scene");
+			}
+		}
+	}
+}
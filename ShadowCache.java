@@ -0,0 +1,93 @@
+/*
+ * ShadowCache.java
+ * Description: Remembers the last sphere that shadowed a point from
+ * each light on one render thread. Neighbouring hit points are usually
+ * blocked by the same sphere, so testing it first skips the walk down
+ * the shadow tree's leaf list. Counts how often that pays off.
+ *
+ * The cache holds a scene's epoch number rather than the scene, so it
+ * never keeps a scene reachable, and its counts are added to the totals
+ * whenever its thread finishes a task (see TraceScratch.flush), so no
+ * list of caches is kept and a cache goes away with its thread.
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class ShadowCache {
+	public static boolean enabled = true;
+	private static final LongAdder QUERIES = new LongAdder();	// totals flushed by all threads
+	private static final LongAdder HITS = new LongAdder();
+	private static final LongAdder SPHERE_TESTS = new LongAdder();
+
+	private long epoch;			// Scene.getEpoch of the scene the occluder ids belong to
+	private int[] occluders;	// id of last occluding sphere by light, or -1
+	private long queries;		// shadow tests made through this cache
+	private long hits;			// answered by the cached occluder
+	private long sphereTests;	// intersection tests made on a miss
+
+	public ShadowCache() {
+		this.epoch = -1;
+		this.occluders = new int[Scene.MAX_LIGHTS];
+	}
+
+	// Id of the last occluder of a light found in this scene, or -1
+	public int getOccluder(Scene scene, int light) {
+		this.queries++;
+		return (scene.getEpoch() == this.epoch) ? this.occluders[light] : -1;
+	}
+
+	public void hit() {
+		this.hits++;
+	}
+
+	public void tested(int spheres) {
+		this.sphereTests += spheres;
+	}
+
+	public void remember(Scene scene, int light, int id) {
+		if (scene.getEpoch() != this.epoch) {
+			Arrays.fill(this.occluders, -1);
+			this.epoch = scene.getEpoch();
+		}
+		this.occluders[light] = id;
+	}
+
+	// Add this thread's counts to the totals and start again from zero
+	public void flush() {
+		if (this.queries != 0) {
+			QUERIES.add(this.queries);
+			HITS.add(this.hits);
+			SPHERE_TESTS.add(this.sphereTests);
+			this.queries = 0;
+			this.hits = 0;
+			this.sphereTests = 0;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	//				COUNTERS SUMMED OVER ALL RENDER THREADS			//
+	//////////////////////////////////////////////////////////////////
+	public static long totalQueries() {
+		return QUERIES.sum();
+	}
+
+	public static long totalHits() {
+		return HITS.sum();
+	}
+
+	public static long totalSphereTests() {
+		return SPHERE_TESTS.sum();
+	}
+
+	public static double hitRate() {
+		long queries = totalQueries();
+		return (queries == 0) ? 0.0 : (double) totalHits() / queries;
+	}
+
+	// Zero the counters; only call while no frame is being rendered
+	public static void resetCounters() {
+		QUERIES.reset();
+		HITS.reset();
+		SPHERE_TESTS.reset();
+	}
+}
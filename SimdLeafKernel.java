@@ -0,0 +1,81 @@
+/*
+ * SimdLeafKernel.java
+ * Description: LeafKernel built on the incubating Java Vector API. It
+ * evaluates the discriminant and nearest t for as many spheres at once
+ * as the hardware vector holds (8 on AVX2, 16 on AVX-512). The lane
+ * arithmetic is the same IEEE float arithmetic as the scalar path, in
+ * the same order, so results are identical.
+ *
+ * Needs --add-modules jdk.incubator.vector to compile and run; it is
+ * only loaded by name from LeafKernel.create. LeafPack pads its blocks
+ * to LeafPack.ALIGN floats, so a vector wider than that (such as 2048-bit
+ * SVE) would read past them; the constructor refuses one, and
+ * LeafKernel.create then falls back to the scalar kernel.
+ */
+import jdk.incubator.vector.*;
+
+public class SimdLeafKernel extends LeafKernel {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	public SimdLeafKernel() {
+		if (SPECIES.length() > LeafPack.ALIGN) {
+			throw new UnsupportedOperationException(SPECIES.length() + "-lane vectors are wider than"
+													+ " LeafPack pads to");
+		}
+	}
+
+	public String getName() { return "simd x" + SPECIES.length(); }
+
+	public int nearest(LeafPack pack, float ox, float oy, float oz,
+						float dx, float dy, float dz, float tMin,
+						TraceScratch scratch) {
+		float[] d = pack.getData();
+		int stride = pack.getStride();
+		int lanes = SPECIES.length();
+		float closest = Float.POSITIVE_INFINITY;
+		int closestIndex = -1;
+		for (int i = 0; i < pack.size(); i += lanes) {
+			FloatVector t = intersect(d, stride, i, ox, oy, oz, dx, dy, dz);
+			VectorMask<Float> hit = t.compare(VectorOperators.GT, tMin)
+										.and(t.compare(VectorOperators.LT, closest));
+			if (hit.anyTrue()) {
+				float best = t.reduceLanes(VectorOperators.MIN, hit);
+				closest = best;
+				closestIndex = i + t.compare(VectorOperators.EQ, best).and(hit).firstTrue();
+			}
+		}
+		scratch.hitDistance = closest;
+		return closestIndex;
+	}
+
+	public int anyHit(LeafPack pack, float ox, float oy, float oz,
+						float dx, float dy, float dz) {
+		float[] d = pack.getData();
+		int stride = pack.getStride();
+		int lanes = SPECIES.length();
+		for (int i = 0; i < pack.size(); i += lanes) {
+			VectorMask<Float> hit = intersect(d, stride, i, ox, oy, oz, dx, dy, dz)
+										.compare(VectorOperators.GT, 0.0f);
+			if (hit.anyTrue()) {
+				return i + hit.firstTrue();
+			}
+		}
+		return -1;
+	}
+
+	// t-values for spheres i .. i + lanes - 1; NaN where there is no hit
+	private static FloatVector intersect(float[] d, int stride, int i, float ox, float oy,
+											float oz, float dx, float dy, float dz) {
+		FloatVector qx = FloatVector.broadcast(SPECIES, ox).sub(FloatVector.fromArray(SPECIES, d, i));
+		FloatVector qy = FloatVector.broadcast(SPECIES, oy).sub(FloatVector.fromArray(SPECIES, d, stride + i));
+		FloatVector qz = FloatVector.broadcast(SPECIES, oz).sub(FloatVector.fromArray(SPECIES, d, 2 * stride + i));
+		FloatVector r2 = FloatVector.fromArray(SPECIES, d, 3 * stride + i);
+
+		FloatVector b = qx.mul(dx).add(qy.mul(dy)).add(qz.mul(dz)).mul(2.0f);
+		FloatVector c = qx.mul(qx).add(qy.mul(qy)).add(qz.mul(qz)).sub(r2);
+		FloatVector discriminant = b.mul(b).sub(c.mul(4.0f));
+
+		// sqrt of a negative discriminant is NaN, which fails every test
+		return b.neg().sub(discriminant.lanewise(VectorOperators.SQRT)).mul(0.5f);
+	}
+}
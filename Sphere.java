@@ -13,6 +13,11 @@ public class Sphere {
 	private float radius;
 	private nTuple color;
 	private float ambFactor = 0.1f;		// ambient lighting
+	private int id = -1;				// index in a SphereStore
+
+	public int getId() { return this.id; }
+
+	public void setId(int id) { this.id = id; }
 
 	public nTuple getCenter() { return this.center; }
 
@@ -30,11 +35,13 @@ public class Sphere {
 	public Sphere(float x, float y, float z, float radius, float r,
 				float g, float b, nTuple lightBasis1, nTuple lightBasis2,
 				nTuple lightBasis3) {
+		this(x, y, z, radius, r, g, b, new LightFrame(lightBasis1, lightBasis2, lightBasis3));
+	}
+
+	public Sphere(float x, float y, float z, float radius, float r,
+				float g, float b, LightFrame light) {
 		this.center = new nTuple(x, y, z);
-		this.center_shadow = this.center.coordChange(lightBasis1,
-														lightBasis2,
-														lightBasis3,
-														this.center);
+		this.center_shadow = light.toLight(this.center);
 		this.radius = radius;
 		this.color = new nTuple(r, g, b);
 	}
@@ -44,6 +51,7 @@ public class Sphere {
 		this.center_shadow = new nTuple(other.getCenterShadow());
 		this.radius = other.getRadius();
 		this.color = new nTuple(other.getColor());
+		this.id = other.getId();
 	}
 
 	//////////////////////////////////////////////////////////////////
@@ -60,6 +68,12 @@ public class Sphere {
 		this.center.setNTuple(other);
 	}
 
+	// Move the center, keeping the shadow coords in step with it
+	public void moveTo(float x, float y, float z, LightFrame light) {
+		this.center.set(x, y, z);
+		light.toLight(this.center, this.center_shadow);
+	}
+
 	public void setColor(nTuple newColor) {
 		this.color.setNTuple(newColor);
 	}
@@ -68,6 +82,36 @@ public class Sphere {
 		return lambertian(point, light, inShadow);
 	}
 
+	// Same as shadeSphere, but returns a packed ARGB int rather than
+	// allocating a Color
+	public int shadeRGB(nTuple point, nTuple light, boolean inShadow) {
+		float cosVectors = ambFactor;
+		if (!inShadow) {
+			// surface normal, normalized as in nTuple.normalize
+			float nx = point.getX() - this.center.getX();
+			float ny = point.getY() - this.center.getY();
+			float nz = point.getZ() - this.center.getZ();
+			float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			cosVectors = (nx / len) * light.getX()
+						+ (ny / len) * light.getY()
+						+ (nz / len) * light.getZ();
+			if (cosVectors < ambFactor) {
+				cosVectors = ambFactor;
+			}
+		}
+		return packRGB(cosVectors * this.color.getX(),
+						cosVectors * this.color.getY(),
+						cosVectors * this.color.getZ());
+	}
+
+	// Pack float components in [0, 1] the way java.awt.Color does
+	public static int packRGB(float r, float g, float b) {
+		return 0xff000000
+				| ((int) (r * 255 + 0.5) << 16)
+				| ((int) (g * 255 + 0.5) << 8)
+				| (int) (b * 255 + 0.5);
+	}
+
 	// Lambertian shading
 	public Color lambertian(nTuple point, nTuple light, boolean inShadow) {
 		float cosVectors = ambFactor;
@@ -82,4 +126,21 @@ public class Sphere {
 							cosVectors * this.color.getY(),
 							cosVectors * this.color.getZ());
 	}
+
+	// Lambertian shading summed over several lights. Bit k of shadowed
+	// is set when light k is blocked; lights behind the surface add
+	// nothing, and the sum is kept between ambient and full brightness.
+	public Color lambertian(nTuple point, java.util.List<LightFrame> lights, int shadowed) {
+		nTuple n = point.subtract(this.center).normalize();	// surface normal
+		float cosVectors = 0.0f;
+		for (int k = 0; k < lights.size(); k++) {
+			if ((shadowed & (1 << k)) == 0) {
+				cosVectors += Math.max(n.dot(lights.get(k).getDirection()), 0.0f);
+			}
+		}
+		cosVectors = Math.min(Math.max(cosVectors, ambFactor), 1.0f);
+		return new Color(cosVectors * this.color.getX(),
+							cosVectors * this.color.getY(),
+							cosVectors * this.color.getZ());
+	}
 }
@@ -1,24 +1,81 @@
+import java.util.*;
+
 public class SphereList {
-	private Sphere current;
+	private int id;			// SphereStore id of the sphere
 	private SphereList next;
+	private float key;		// order within a sorted leaf, see Quadtree.sortLeaves
 
-	public SphereList(Sphere s, SphereList next) {
-		this.current = s;
+	public SphereList(int id, SphereList next) {
+		this.id = id;
 		this.next = next;
 	}
 
-	public SphereList add(Sphere s) {
-		return new SphereList(s, this);
+	public SphereList add(int id) {
+		return new SphereList(id, this);
 	}
 
-	public Sphere getSphere() {
-		return this.current;
+	public int getId() {
+		return this.id;
 	}
 
 	public SphereList getNext() {
 		return this.next;
 	}
 
+	public float getKey() {
+		return this.key;
+	}
+
+	public void setKey(float key) {
+		this.key = key;
+	}
+
+	// Relink the count links of the list by ascending key, returning the
+	// new head. Links with equal keys keep their order.
+	public static SphereList sort(SphereList head, int count) {
+		SphereList[] links = new SphereList[count];
+		int n = 0;
+		for (SphereList list = head; list != null; list = list.next) {
+			links[n++] = list;
+		}
+		Arrays.sort(links, new Comparator<SphereList>() {
+			public int compare(SphereList a, SphereList b) {
+				return Float.compare(a.key, b.key);
+			}
+		});
+		for (int i = 0; i < count - 1; i++) {
+			links[i].next = links[i + 1];
+		}
+		links[count - 1].next = null;
+		return links[0];
+	}
+
+	public boolean contains(int id) {
+		for (SphereList list = this; list != null; list = list.next) {
+			if (list.id == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Unlink sphere id, returning the head of the remaining list (null if
+	// it was the only sphere). The rest of the list keeps its order.
+	public SphereList remove(int id) {
+		if (this.id == id) {
+			return this.next;
+		}
+		SphereList previous = this;
+		for (SphereList list = this.next; list != null; list = list.next) {
+			if (list.id == id) {
+				previous.next = list.next;
+				break;
+			}
+			previous = list;
+		}
+		return this;
+	}
+
 	public int length() {
 		if (this.next == null) {
 			return 1;
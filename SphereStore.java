@@ -0,0 +1,203 @@
+/*
+ * SphereStore.java
+ * Description: Sphere data kept in parallel primitive arrays and
+ * addressed by an int id, so the intersection loop reads contiguous
+ * floats instead of chasing Sphere and nTuple references.
+ */
+import java.util.*;
+
+public class SphereStore {
+	private static final float AMB_FACTOR = 0.1f;	// ambient lighting, as in Sphere
+	private float[] cx, cy, cz;		// centers
+	private float[] sx, sy, sz;		// centers in shadow coord sys
+	private float[] radius;
+	private float[] radius2;		// radius squared
+	private float[] red, green, blue;
+	private int size;
+	private nTuple center = new nTuple();	// scratch for add
+	private nTuple shadow = new nTuple();
+
+	public int size() { return this.size; }
+
+	public float getCenterX(int id) { return this.cx[id]; }
+
+	public float getCenterY(int id) { return this.cy[id]; }
+
+	public float getCenterZ(int id) { return this.cz[id]; }
+
+	public float getShadowX(int id) { return this.sx[id]; }
+
+	public float getShadowY(int id) { return this.sy[id]; }
+
+	public float getShadowZ(int id) { return this.sz[id]; }
+
+	public float getRadius(int id) { return this.radius[id]; }
+
+	public float getRadius2(int id) { return this.radius2[id]; }
+
+	public float getRed(int id) { return this.red[id]; }
+
+	public float getGreen(int id) { return this.green[id]; }
+
+	public float getBlue(int id) { return this.blue[id]; }
+
+	public SphereStore() {
+		this(16);
+	}
+
+	public SphereStore(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.cx = new float[capacity];
+		this.cy = new float[capacity];
+		this.cz = new float[capacity];
+		this.sx = new float[capacity];
+		this.sy = new float[capacity];
+		this.sz = new float[capacity];
+		this.radius = new float[capacity];
+		this.radius2 = new float[capacity];
+		this.red = new float[capacity];
+		this.green = new float[capacity];
+		this.blue = new float[capacity];
+		this.size = 0;
+	}
+
+	// Copy a sphere into the store and give it the next id
+	public int add(Sphere s) {
+		if (this.size == this.cx.length) {
+			grow(2 * this.size);
+		}
+		int id = this.size++;
+		set(id, s);
+		s.setId(id);
+		return id;
+	}
+
+	// Add a sphere straight from its attributes, without a Sphere object
+	public int add(float x, float y, float z, float radius, float r, float g, float b,
+					LightFrame light) {
+		if (this.size == this.cx.length) {
+			grow(2 * this.size);
+		}
+		int id = this.size++;
+		light.toLight(this.center.set(x, y, z), this.shadow);
+		this.cx[id] = x;
+		this.cy[id] = y;
+		this.cz[id] = z;
+		this.sx[id] = this.shadow.getX();
+		this.sy[id] = this.shadow.getY();
+		this.sz[id] = this.shadow.getZ();
+		this.radius[id] = radius;
+		this.radius2[id] = radius * radius;
+		this.red[id] = r;
+		this.green[id] = g;
+		this.blue[id] = b;
+		return id;
+	}
+
+	// Make room for at least capacity spheres
+	public void ensureCapacity(int capacity) {
+		if (capacity > this.cx.length) {
+			grow(capacity);
+		}
+	}
+
+	// Overwrite the entry for id with the sphere's current attributes
+	public void set(int id, Sphere s) {
+		this.cx[id] = s.getCenter().getX();
+		this.cy[id] = s.getCenter().getY();
+		this.cz[id] = s.getCenter().getZ();
+		this.sx[id] = s.getCenterShadow().getX();
+		this.sy[id] = s.getCenterShadow().getY();
+		this.sz[id] = s.getCenterShadow().getZ();
+		this.radius[id] = s.getRadius();
+		this.radius2[id] = s.getRadius() * s.getRadius();
+		this.red[id] = s.getColor().getX();
+		this.green[id] = s.getColor().getY();
+		this.blue[id] = s.getColor().getZ();
+	}
+
+	private void grow(int capacity) {
+		this.cx = Arrays.copyOf(this.cx, capacity);
+		this.cy = Arrays.copyOf(this.cy, capacity);
+		this.cz = Arrays.copyOf(this.cz, capacity);
+		this.sx = Arrays.copyOf(this.sx, capacity);
+		this.sy = Arrays.copyOf(this.sy, capacity);
+		this.sz = Arrays.copyOf(this.sz, capacity);
+		this.radius = Arrays.copyOf(this.radius, capacity);
+		this.radius2 = Arrays.copyOf(this.radius2, capacity);
+		this.red = Arrays.copyOf(this.red, capacity);
+		this.green = Arrays.copyOf(this.green, capacity);
+		this.blue = Arrays.copyOf(this.blue, capacity);
+	}
+
+	// Intersect a ray with sphere id. Same arithmetic as
+	// ray.intersectSphere, so the results are identical, but nothing
+	// is allocated. The direction must be normalized.
+	public float intersect(nTuple rayOrigin, nTuple rayDir, int id) {
+		return intersect(rayOrigin.getX(), rayOrigin.getY(), rayOrigin.getZ(),
+							rayDir.getX(), rayDir.getY(), rayDir.getZ(), id);
+	}
+
+	public float intersect(float ox, float oy, float oz, float dx, float dy, float dz, int id) {
+		// Move sphere and ray by same amount to simplify math
+		float qx = ox - this.cx[id];
+		float qy = oy - this.cy[id];
+		float qz = oz - this.cz[id];
+
+		float b = 2.0f * (qx * dx + qy * dy + qz * dz);
+		float c = (qx * qx + qy * qy + qz * qz) - this.radius2[id];
+		float discriminant = (b*b) - 4.0f*c;
+
+		if (discriminant < 0.0f) {		// no intersection
+			return -1.0f;
+		} else {
+			return (0.5f * (-b - (float) Math.sqrt(discriminant)));
+		}
+	}
+
+	// Cosine of the angle between the surface normal at a point on
+	// sphere id and a unit direction
+	public float cosine(int id, nTuple point, nTuple dir) {
+		float nx = point.getX() - this.cx[id];
+		float ny = point.getY() - this.cy[id];
+		float nz = point.getZ() - this.cz[id];
+		float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		return (nx / len) * dir.getX() + (ny / len) * dir.getY() + (nz / len) * dir.getZ();
+	}
+
+	// Shading summed over several lights, packed as an ARGB int. Same
+	// arithmetic as Sphere.lambertian with a list of lights.
+	public int shadeRGB(int id, nTuple point, List<LightFrame> lights, int shadowed) {
+		float cosVectors = 0.0f;
+		for (int k = 0; k < lights.size(); k++) {
+			if ((shadowed & (1 << k)) == 0) {
+				cosVectors += Math.max(cosine(id, point, lights.get(k).getDirection()), 0.0f);
+			}
+		}
+		cosVectors = Math.min(Math.max(cosVectors, AMB_FACTOR), 1.0f);
+		return Sphere.packRGB(cosVectors * this.red[id],
+								cosVectors * this.green[id],
+								cosVectors * this.blue[id]);
+	}
+
+	// Lambertian shading of a point on sphere id, packed as an ARGB int.
+	// Same arithmetic as Sphere.shadeRGB.
+	public int shadeRGB(int id, nTuple point, nTuple light, boolean inShadow) {
+		float cosVectors = AMB_FACTOR;
+		if (!inShadow) {
+			float nx = point.getX() - this.cx[id];
+			float ny = point.getY() - this.cy[id];
+			float nz = point.getZ() - this.cz[id];
+			float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			cosVectors = (nx / len) * light.getX()
+						+ (ny / len) * light.getY()
+						+ (nz / len) * light.getZ();
+			if (cosVectors < AMB_FACTOR) {
+				cosVectors = AMB_FACTOR;
+			}
+		}
+		return Sphere.packRGB(cosVectors * this.red[id],
+								cosVectors * this.green[id],
+								cosVectors * this.blue[id]);
+	}
+}
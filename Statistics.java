@@ -3,18 +3,32 @@
  * 1/6/18
  *
  * This class contains methods to calculate the statistics associated
- * with spheres used in the ray tracer.
+ * with spheres used in the ray tracer, and to report how a frame was
+ * rendered: rays cast, intersection tests per pixel, and how the
+ * spheres are spread over the quadtree leaves.
  */
 import java.util.*;
 import java.io.*;
 
 public class Statistics {
 	private ArrayList<Sphere> spheres;
+	private Scene scene;
+	private long buildTime;		// nanoseconds
+	private long renderTime;
 
 	public Statistics(ArrayList<Sphere> spheres) {
 		this.spheres = spheres;
 	}
 
+	public Statistics(Scene scene) {
+		this(scene.getSpheres());
+		this.scene = scene;
+	}
+
+	public void setBuildTime(long nanos) { this.buildTime = nanos; }
+
+	public void setRenderTime(long nanos) { this.renderTime = nanos; }
+
 	/*
 	 * Generates a csv file containing the (x, y, z) coordinates of the
 	 * center of each sphere in the ray tracer.
@@ -32,4 +46,149 @@ public class Statistics {
 			System.err.println("File could not be created.");
 		}
 	}
+
+	/*
+	 * Collects the render report. The ray and test counts are the
+	 * RenderCounters totals, which every render thread adds to as it
+	 * finishes a task, so they cover everything traced since
+	 * RenderCounters.resetCounters was last called.
+	 */
+	public LinkedHashMap<String, Object> report() {
+		LinkedHashMap<String, Object> report = new LinkedHashMap<String, Object>();
+		long pixels = RenderCounters.totalPixels();
+		report.put("spheres", scene.getStore().size());
+		report.put("lights", scene.getLightCount());
+		report.put("build_ms", buildTime / 1e6);
+		report.put("render_ms", renderTime / 1e6);
+		report.put("pixels", pixels);
+		report.put("aa_samples", RenderCounters.totalSamples());
+		report.put("primary_rays", RenderCounters.totalPrimaryRays());
+		report.put("shadow_rays", RenderCounters.totalShadowRays());
+		report.put("tests", RenderCounters.totalTests());
+		report.put("tests_per_pixel_mean",
+					(pixels == 0) ? 0.0 : (double) RenderCounters.totalTests() / pixels);
+		report.put("tests_per_pixel_p99", RenderCounters.testsPercentile(0.99));
+		report.put("tests_per_pixel_max", RenderCounters.maxTests());
+		report.put("empty_leaf_pixel_pct",
+					(pixels == 0) ? 0.0 : 100.0 * RenderCounters.totalEmptyLeafPixels() / pixels);
+		if (scene.getTree() != null) {
+			report.put("tree", occupancy(scene.getTree()));
+			report.put("shadow_tree", occupancy(scene.getShadowTree()));
+		} else if (scene.getLinearTree() != null) {
+			report.put("tree", occupancy(scene.getLinearTree()));
+			report.put("shadow_tree", occupancy(scene.getLinearShadowTree()));
+		}
+		return report;
+	}
+
+	/*
+	 * Leaf count, empty leaves, a histogram of leaf list lengths in
+	 * power of 2 buckets, and how many leaves each sphere is listed in
+	 * on average.
+	 */
+	private LinkedHashMap<String, Object> occupancy(Quadtree tree) {
+		ArrayList<Quadtree> leaves = new ArrayList<Quadtree>();
+		tree.getLeaves(leaves);
+		int[] lengths = new int[leaves.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = leaves.get(i).getCount();
+		}
+		return occupancy(lengths);
+	}
+
+	private LinkedHashMap<String, Object> occupancy(LinearQuadtree tree) {
+		int[] lengths = new int[tree.getLeafCount()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = tree.getCount(i);
+		}
+		return occupancy(lengths);
+	}
+
+	private LinkedHashMap<String, Object> occupancy(int[] lengths) {
+		long entries = 0;
+		int empty = 0;
+		int longest = 0;
+		long[] buckets = new long[33];
+		for (int length : lengths) {
+			entries += length;
+			if (length == 0) {
+				empty++;
+			}
+			longest = Math.max(longest, length);
+			buckets[32 - Integer.numberOfLeadingZeros(length)]++;
+		}
+
+		LinkedHashMap<String, Object> histogram = new LinkedHashMap<String, Object>();
+		for (int b = 0; b <= 32 - Integer.numberOfLeadingZeros(longest); b++) {
+			String range;
+			if (b <= 1) {
+				range = Integer.toString(b);
+			} else {
+				range = (1 << (b - 1)) + "-" + ((1 << b) - 1);
+			}
+			histogram.put(range, buckets[b]);
+		}
+
+		LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+		int numSpheres = scene.getStore().size();
+		result.put("leaves", lengths.length);
+		result.put("empty_leaves", empty);
+		result.put("entries", entries);
+		result.put("longest_list", longest);
+		result.put("duplication", (numSpheres == 0) ? 0.0 : (double) entries / numSpheres);
+		result.put("list_lengths", histogram);
+		return result;
+	}
+
+	/*
+	 * Writes the report as JSON if the file name ends in .json, and as
+	 * CSV otherwise.
+	 */
+	public void writeReport(File file) throws IOException {
+		PrintStream output = new PrintStream(new FileOutputStream(file));
+		try {
+			if (file.getName().toLowerCase().endsWith(".json")) {
+				writeJSON(report(), "", output);
+				output.println();
+			} else {
+				output.println("metric,value");
+				writeCSV(report(), "", output);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/*
+	 * One metric per row; nested values get dotted names, such as
+	 * tree.list_lengths.4-7
+	 */
+	private static void writeCSV(Map<String, Object> values, String prefix, PrintStream output) {
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			if (e.getValue() instanceof Map) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> nested = (Map<String, Object>) e.getValue();
+				writeCSV(nested, prefix + e.getKey() + ".", output);
+			} else {
+				output.println(prefix + e.getKey() + "," + e.getValue());
+			}
+		}
+	}
+
+	private static void writeJSON(Map<String, Object> values, String indent, PrintStream output) {
+		output.println("{");
+		int i = 0;
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			output.print(indent + "\t\"" + e.getKey() + "\": ");
+			if (e.getValue() instanceof Map) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> nested = (Map<String, Object>) e.getValue();
+				writeJSON(nested, indent + "\t", output);
+			} else {
+				output.print(e.getValue());
+			}
+			output.println((++i < values.size()) ? "," : "");
+		}
+		output.print(indent + "}");
+	}
 }
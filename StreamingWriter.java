@@ -0,0 +1,228 @@
+/*
+ * StreamingWriter.java
+ * Description: Renders an image a band of rows at a time and writes
+ * each band to a PPM or PNG stream as soon as it is traced, so only two
+ * bands are held in memory however large the image is. A band is a row
+ * of ParallelRenderer tiles (cut down to MAX_BAND_PIXELS), and is traced
+ * on the renderer's pool while the band before it is encoded on a
+ * background thread.
+ *
+ * PNGs are encoded here rather than through ImageIO, which wants the
+ * whole image at once: every row is Sub filtered and fed to a single
+ * Deflater, which is sync flushed at the end of each band so the band
+ * goes out in IDAT chunks straight away.
+ */
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class StreamingWriter {
+	public static final int MAX_BAND_PIXELS = 1 << 22;	// 16 MB of pixels per band
+	private static final int CHUNK_BYTES = 65536;		// largest IDAT chunk written
+
+	// Pick the image format from the file extension, as FrameWriter does
+	public static void render(ParallelRenderer renderer, Scene scene, int width, int height,
+								File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), CHUNK_BYTES);
+		try {
+			render(renderer, scene, width, height,
+					file.getName().toLowerCase().endsWith(".png"), out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void render(ParallelRenderer renderer, Scene scene, int width, int height,
+								boolean png, OutputStream out) throws IOException {
+		final Encoder encoder = png ? new PNGEncoder(out, width, height)
+									: new PPMEncoder(out, width, height);
+		int rows = bandRows(scene, width, height);
+		int[][] bands = { new int[rows * width], new int[rows * width] };
+		ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "StreamingWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			Future<?> pending = null;
+			for (int v = 0, b = 0; v < height; v += rows, b ^= 1) {
+				final int[] band = bands[b];
+				final int count = Math.min(rows, height - v);
+				renderer.renderRows(scene, band, width, height, v, v + count);
+				// The other band is free again once it has been written
+				await(pending);
+				pending = writer.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						encoder.writeRows(band, count);
+						return null;
+					}
+				});
+			}
+			await(pending);
+			encoder.finish();
+		} finally {
+			writer.shutdown();
+		}
+	}
+
+	// Rows in a band: one row of tiles, but no more than MAX_BAND_PIXELS
+	public static int bandRows(Scene scene, int width, int height) {
+		int tile = ParallelRenderer.tileSize(scene, width, height);
+		int most = Math.max(MAX_BAND_PIXELS / width, 1);
+		return Math.max(Math.min(Math.min(tile, most), height), 1);
+	}
+
+	private static void await(Future<?> band) throws IOException {
+		if (band == null) {
+			return;
+		}
+		try {
+			band.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing image");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not write image", e.getCause());
+		}
+	}
+
+	// Writes an image's rows in order, a band at a time
+	private abstract static class Encoder {
+		abstract void writeRows(int[] pixels, int rows) throws IOException;
+
+		abstract void finish() throws IOException;
+	}
+
+	// Binary (P6) PPM, as FrameWriter.writePPM writes it
+	private static class PPMEncoder extends Encoder {
+		private OutputStream out;
+		private int width;
+		private byte[] row;
+
+		PPMEncoder(OutputStream out, int width, int height) throws IOException {
+			this.out = out;
+			this.width = width;
+			this.row = new byte[3 * width];
+			out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+		}
+
+		void writeRows(int[] pixels, int rows) throws IOException {
+			for (int y = 0; y < rows; y++) {
+				int offset = y * width;
+				for (int x = 0; x < width; x++) {
+					int rgb = pixels[offset + x];
+					row[3*x] = (byte) (rgb >> 16);
+					row[3*x + 1] = (byte) (rgb >> 8);
+					row[3*x + 2] = (byte) rgb;
+				}
+				out.write(row);
+			}
+			out.flush();
+		}
+
+		void finish() throws IOException {
+			out.flush();
+		}
+	}
+
+	// 8-bit RGB PNG with no interlacing
+	private static class PNGEncoder extends Encoder {
+		private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+		private static final int SUB = 1;	// filter: each byte minus the one a pixel to its left
+		private DataOutputStream out;
+		private int width;
+		private byte[] row;				// filter type, then the filtered row
+		private Deflater deflater;
+		private byte[] chunk;			// compressed bytes not yet written
+		private int used;
+		private CRC32 crc;
+
+		PNGEncoder(OutputStream out, int width, int height) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.width = width;
+			this.row = new byte[1 + 3 * width];
+			this.deflater = new Deflater(Deflater.BEST_SPEED);
+			this.chunk = new byte[CHUNK_BYTES];
+			this.crc = new CRC32();
+			this.out.write(SIGNATURE);
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream ihdr = new DataOutputStream(header);
+			ihdr.writeInt(width);
+			ihdr.writeInt(height);
+			ihdr.writeByte(8);		// bits per channel
+			ihdr.writeByte(2);		// RGB
+			ihdr.writeByte(0);		// deflate
+			ihdr.writeByte(0);		// adaptive filtering
+			ihdr.writeByte(0);		// not interlaced
+			writeChunk("IHDR", header.toByteArray(), header.size());
+		}
+
+		void writeRows(int[] pixels, int rows) throws IOException {
+			row[0] = SUB;
+			for (int y = 0; y < rows; y++) {
+				int offset = y * width;
+				int left = 0;
+				for (int x = 0; x < width; x++) {
+					int rgb = pixels[offset + x];
+					row[3*x + 1] = (byte) ((rgb >> 16) - (left >> 16));
+					row[3*x + 2] = (byte) ((rgb >> 8) - (left >> 8));
+					row[3*x + 3] = (byte) (rgb - left);
+					left = rgb;
+				}
+				this.deflater.setInput(row);
+				while (!this.deflater.needsInput()) {
+					deflate(Deflater.NO_FLUSH);
+				}
+			}
+			// Flush what the band compressed to, so it can be written now
+			int n;
+			do {
+				n = deflate(Deflater.SYNC_FLUSH);
+			} while (n > 0 && this.used == 0);
+			writeData();
+			out.flush();
+		}
+
+		void finish() throws IOException {
+			this.deflater.finish();
+			while (!this.deflater.finished()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+			writeData();
+			this.deflater.end();
+			writeChunk("IEND", this.chunk, 0);
+			out.flush();
+		}
+
+		// Compress into the chunk buffer, writing it out when it fills;
+		// returns the number of bytes compressed
+		private int deflate(int flush) throws IOException {
+			int n = this.deflater.deflate(this.chunk, this.used, this.chunk.length - this.used, flush);
+			this.used += n;
+			if (this.used == this.chunk.length) {
+				writeData();
+			}
+			return n;
+		}
+
+		private void writeData() throws IOException {
+			if (this.used > 0) {
+				writeChunk("IDAT", this.chunk, this.used);
+				this.used = 0;
+			}
+		}
+
+		private void writeChunk(String type, byte[] data, int length) throws IOException {
+			byte[] name = type.getBytes("US-ASCII");
+			this.crc.reset();
+			this.crc.update(name);
+			this.crc.update(data, 0, length);
+			out.writeInt(length);
+			out.write(name);
+			out.write(data, 0, length);
+			out.writeInt((int) this.crc.getValue());
+		}
+	}
+}
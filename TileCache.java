@@ -0,0 +1,192 @@
+/*
+ * TileCache.java
+ * Description: Keeps the last rendered image, cut into square tiles,
+ * so that after a few spheres change only the tiles they can affect are
+ * traced again. A sphere dirties the tiles under its projection on the
+ * screen and under its shadow: the points it can block from the light
+ * lie in the cylinder swept from the sphere away from each light, so
+ * the projection of those cylinders, out to the edge of the scene, is
+ * marked too. Mark a sphere both before and after changing it.
+ */
+public class TileCache {
+	private static final int SHADOW_PIECES = 32;	// pieces a shadow cylinder is marked in
+	private Scene scene;
+	private int width, height;
+	private int tile;				// tile edge in pixels
+	private int across, down;		// tiles per row and per column
+	private int[] pixels;
+	private boolean[] dirty;
+	private int[] dirtyList;		// indices of the dirty tiles
+	private int dirtyCount;
+	private float extent;			// every sphere lies within [-extent, extent] on each axis
+
+	public int[] getPixels() { return this.pixels; }
+
+	public int getTileSize() { return this.tile; }
+
+	public int getDirtyCount() { return this.dirtyCount; }
+
+	public int getTileCount() { return this.dirty.length; }
+
+	public TileCache(Scene scene, int width, int height, int tile) {
+		this.scene = scene;
+		this.width = width;
+		this.height = height;
+		this.tile = tile;
+		this.across = (width + tile - 1) / tile;
+		this.down = (height + tile - 1) / tile;
+		this.pixels = new int[width * height];
+		this.dirty = new boolean[this.across * this.down];
+		this.dirtyList = new int[this.dirty.length];
+		this.dirtyCount = 0;
+		this.extent = 0.0f;
+		SphereStore store = scene.getStore();
+		for (int id = 0; id < store.size(); id++) {
+			include(store.getCenterX(id), store.getCenterY(id), store.getCenterZ(id),
+					store.getRadius(id));
+		}
+		invalidate();
+	}
+
+	// Mark every tile dirty
+	public void invalidate() {
+		for (int i = 0; i < this.dirty.length; i++) {
+			markTile(i);
+		}
+	}
+
+	// Mark the tiles a sphere at its current position can affect
+	public void markSphere(Sphere s) {
+		nTuple c = s.getCenter();
+		float r = s.getRadius();
+		include(c.getX(), c.getY(), c.getZ(), r);
+
+		// The same bounds the quadtree files the sphere under
+		float[] bounds = Quadtree.screenBounds(s, RayTraceShadows.CAM_Z);
+		markRegion(bounds[0], bounds[1], bounds[2], bounds[3]);
+
+		for (int light = 0; light < this.scene.getLightCount(); light++) {
+			nTuple sd = (light == 0) ? RayTraceShadows.SHADOW_DIR
+										: this.scene.getLight(light).getDirection();
+			if (!markShadow(c, r, sd)) {
+				invalidate();		// reaches the camera, could cover anything
+				return;
+			}
+		}
+	}
+
+	// Mark the shadow cylinder, which runs from the center away from the
+	// light until it leaves the scene. It is cut into pieces so a long
+	// diagonal shadow doesn't mark the whole box around it. Returns
+	// false if it can't be projected.
+	private boolean markShadow(nTuple c, float r, nTuple sd) {
+		float t = Math.min(exitDistance(c.getX(), -sd.getX()),
+							Math.min(exitDistance(c.getY(), -sd.getY()),
+										exitDistance(c.getZ(), -sd.getZ())));
+		for (int i = 0; i < SHADOW_PIECES; i++) {
+			float t0 = t * i / SHADOW_PIECES;
+			float t1 = t * (i + 1) / SHADOW_PIECES;
+			if (!markPiece(c.getX() - t0 * sd.getX(), c.getY() - t0 * sd.getY(),
+							c.getZ() - t0 * sd.getZ(), c.getX() - t1 * sd.getX(),
+							c.getY() - t1 * sd.getY(), c.getZ() - t1 * sd.getZ(), r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Mark the projection of the cylinder of radius r from a to b.
+	// Perspective projection keeps convex shapes convex, so the corners of
+	// the cubes around its two ends bound it. Returns false if the piece
+	// reaches the camera plane and so can't be projected.
+	private boolean markPiece(float ax, float ay, float az, float bx, float by, float bz,
+								float r) {
+		float camZ = RayTraceShadows.CAM_Z;
+		float x1 = Float.POSITIVE_INFINITY, y1 = Float.POSITIVE_INFINITY;
+		float x2 = Float.NEGATIVE_INFINITY, y2 = Float.NEGATIVE_INFINITY;
+		for (int corner = 0; corner < 16; corner++) {
+			boolean end = (corner & 8) != 0;
+			float x = (end ? bx : ax) + (((corner & 1) != 0) ? r : -r);
+			float y = (end ? by : ay) + (((corner & 2) != 0) ? r : -r);
+			float z = (end ? bz : az) + (((corner & 4) != 0) ? r : -r);
+			if (z >= camZ) {
+				return false;
+			}
+			// Project onto the image plane at z = 0
+			float scale = camZ / (camZ - z);
+			x1 = Math.min(x1, x * scale);
+			x2 = Math.max(x2, x * scale);
+			y1 = Math.min(y1, y * scale);
+			y2 = Math.max(y2, y * scale);
+		}
+		markRegion(x1, y1, x2, y2);
+		return true;
+	}
+
+	// Mark the tiles holding pixels whose image plane coordinates fall in
+	// [x1, x2] x [y1, y2], with a pixel to spare for rounding. NaN bounds
+	// (a sphere too close to the camera to project) mark every tile.
+	public void markRegion(float x1, float y1, float x2, float y2) {
+		if (Float.isNaN(x1) || Float.isNaN(y1) || Float.isNaN(x2) || Float.isNaN(y2)) {
+			invalidate();
+			return;
+		}
+		float sz = RayTraceShadows.IMG_PLANE_SZ;
+		// Inverse of RayTraceShadows.imagePlaneCoord; v runs down the screen
+		int minU = (int) Math.floor((x1 / sz + 1.0f) * this.width / 2.0f) - 1;
+		int maxU = (int) Math.ceil((x2 / sz + 1.0f) * this.width / 2.0f) + 1;
+		int minV = (int) Math.floor((1.0f - y2 / sz) * this.height / 2.0f) - 1;
+		int maxV = (int) Math.ceil((1.0f - y1 / sz) * this.height / 2.0f) + 1;
+		if (maxU < 0 || maxV < 0 || minU >= this.width || minV >= this.height) {
+			return;		// off screen
+		}
+		minU = Math.max(minU, 0) / this.tile;
+		minV = Math.max(minV, 0) / this.tile;
+		maxU = Math.min(maxU, this.width - 1) / this.tile;
+		maxV = Math.min(maxV, this.height - 1) / this.tile;
+		for (int tv = minV; tv <= maxV; tv++) {
+			for (int tu = minU; tu <= maxU; tu++) {
+				markTile(tv * this.across + tu);
+			}
+		}
+	}
+
+	// Trace the dirty tiles again and mark them clean, returning how
+	// many were traced
+	public int render(Scene scene, ParallelRenderer renderer) {
+		int traced = this.dirtyCount;
+		renderer.renderTiles(scene, this.pixels, this.width, this.height, this.tile,
+								this.dirtyList, traced);
+		for (int i = 0; i < traced; i++) {
+			this.dirty[this.dirtyList[i]] = false;
+		}
+		this.dirtyCount = 0;
+		return traced;
+	}
+
+	private void markTile(int index) {
+		if (!this.dirty[index]) {
+			this.dirty[index] = true;
+			this.dirtyList[this.dirtyCount++] = index;
+		}
+	}
+
+	// Grow the scene bounds to hold a sphere
+	private void include(float x, float y, float z, float r) {
+		float far = Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z))) + r;
+		if (far > this.extent) {
+			this.extent = far;
+		}
+	}
+
+	// Distance from coordinate p, moving at rate d, to the edge of the
+	// scene bounds
+	private float exitDistance(float p, float d) {
+		if (d > 0.0f) {
+			return (this.extent - p) / d;
+		} else if (d < 0.0f) {
+			return (-this.extent - p) / d;
+		}
+		return Float.POSITIVE_INFINITY;
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * TileEvent.java
+ * Description: Flight Recorder event for one tile traced by
+ * ParallelRenderer.
+ */
+import jdk.jfr.*;
+
+@Name("raytrace.Tile")
+@Label("Tile")
+@Category("Ray Tracer")
+@Description("Tracing one tile of an image")
+public class TileEvent extends Event {
+	@Label("Spheres")
+	public int spheres;
+
+	@Label("Left")
+	public int minU;
+
+	@Label("Top")
+	public int minV;
+
+	@Label("Pixels")
+	public int pixels;
+}
@@ -0,0 +1,51 @@
+/*
+ * TraceScratch.java
+ * Description: Vectors reused by one render thread while tracing
+ * pixels, so that tracing a frame does not allocate per pixel.
+ */
+public class TraceScratch {
+	private static final ThreadLocal<TraceScratch> SCRATCH = new ThreadLocal<TraceScratch>() {
+		@Override
+		protected TraceScratch initialValue() {
+			return new TraceScratch();
+		}
+	};
+
+	public final nTuple imagePoint = new nTuple();	// point on image plane
+	public final nTuple direction = new nTuple();	// normalized ray direction
+	public final nTuple hitPoint = new nTuple();	// closest intersection
+	public final nTuple shadowPoint = new nTuple();	// hit point in shadow coord sys
+	public final int[] nodeStack = new int[BVH.MAX_DEPTH + 2];	// BVH traversal
+	public float hitDistance;						// t-value of last BVH hit
+	public int hitId;								// sphere the last getRGB hit, or -1
+	public int hitShadowed;							// bit k set when light k was blocked there
+	public final ShadowCache shadowCache = new ShadowCache();	// last occluder
+	public final RenderCounters counters = new RenderCounters();
+
+	// Per-ray state for PacketTracer
+	public final float[] packetDX = new float[PacketTracer.MAX_RAYS];	// directions
+	public final float[] packetDY = new float[PacketTracer.MAX_RAYS];
+	public final float[] packetDZ = new float[PacketTracer.MAX_RAYS];
+	public final float[] packetT = new float[PacketTracer.MAX_RAYS];	// closest hits
+	public final int[] packetHit = new int[PacketTracer.MAX_RAYS];	// sphere ids, or -1
+	public final float[] packetHX = new float[PacketTracer.MAX_RAYS];	// hit points
+	public final float[] packetHY = new float[PacketTracer.MAX_RAYS];
+	public final float[] packetHZ = new float[PacketTracer.MAX_RAYS];
+	public final float[] packetLX = new float[PacketTracer.MAX_RAYS];	// hit points' light-space x
+	public final Quadtree[] packetLeaf = new Quadtree[PacketTracer.MAX_RAYS];	// shadow leaves
+	public final boolean[] packetShadow = new boolean[PacketTracer.MAX_RAYS];
+	public final int[] packetTests = new int[PacketTracer.MAX_RAYS];	// intersection tests
+
+	// The scratch space belonging to the calling thread
+	public static TraceScratch get() {
+		return SCRATCH.get();
+	}
+
+	// Add the calling thread's counts to the totals. Render tasks call
+	// this once they are done, so totals are complete once a frame is.
+	public static void flush() {
+		TraceScratch scratch = SCRATCH.get();
+		scratch.shadowCache.flush();
+		scratch.counters.flush();
+	}
+}
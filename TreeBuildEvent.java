@@ -0,0 +1,22 @@
+/*
+ * TreeBuildEvent.java
+ * Description: Flight Recorder event covering the build of a scene's
+ * acceleration structures, either both quadtrees or the BVH.
+ */
+import jdk.jfr.*;
+
+@Name("raytrace.TreeBuild")
+@Label("Tree Build")
+@Category("Ray Tracer")
+@Description("Building a scene's quadtrees or BVH")
+public class TreeBuildEvent extends Event {
+	@Label("Spheres")
+	public int spheres;
+
+	@Label("Depth")
+	@Description("Quadtree depth, or 0 for a BVH")
+	public int depth;
+
+	@Label("BVH")
+	public boolean bvh;
+}
@@ -0,0 +1,47 @@
+/*
+ * BenchScenes.java
+ * Description: Seeded scenes for the benchmark workloads, so every
+ * run measures the same spheres.
+ */
+import java.util.*;
+
+public class BenchScenes {
+	public static final long SEED = 20170809L;
+
+	public static ArrayList<Sphere> spheres(int count) {
+		Random rand = new Random(SEED);
+		ArrayList<Sphere> spheres = new ArrayList<Sphere>(count);
+		for (int i = 0; i < count; i++) {
+			float x = rand.nextFloat() * 16.0f - 8.0f;
+			float y = rand.nextFloat() * 16.0f - 8.0f;
+			float z = rand.nextFloat() * 16.0f - 8.0f;
+			float radius = rand.nextFloat() * 0.1f + 0.05f;
+			spheres.add(new Sphere(x, y, z, radius, rand.nextFloat(), rand.nextFloat(),
+									rand.nextFloat(), RayTraceShadows.LIGHT_FRAME));
+		}
+		return spheres;
+	}
+
+	public static Scene scene(int count, int depth) {
+		Scene scene = new Scene(depth);
+		for (Sphere s : spheres(count)) {
+			scene.addSphere(s);
+		}
+		scene.sortLeaves();
+		return scene;
+	}
+
+	// Points on the visible side of the scene's spheres, as primary
+	// rays would hit them
+	public static nTuple[] hitPoints(Scene scene, int count) {
+		Random rand = new Random(SEED + 1);
+		nTuple[] points = new nTuple[count];
+		ArrayList<Sphere> spheres = scene.getSpheres();
+		for (int i = 0; i < count; i++) {
+			Sphere s = spheres.get(rand.nextInt(spheres.size()));
+			nTuple toCamera = RayTraceShadows.CAMERA.subtract(s.getCenter()).normalize();
+			points[i] = s.getCenter().add(toCamera.scale(s.getRadius()));
+		}
+		return points;
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * CoordChangeWorkload.java
+ * Description: nTuple.coordChange into the light's coordinate system,
+ * the Gauss-Jordan path.
+ */
+import raytrace.bench.Workload;
+
+public class CoordChangeWorkload implements Workload {
+	private nTuple[] points;
+	private int next;
+
+	public void setUp(int spheres, int depth) {
+		this.points = BenchScenes.hitPoints(BenchScenes.scene(Math.min(spheres, 1000), 0), 1024);
+		this.next = 0;
+	}
+
+	public long run() {
+		nTuple p = this.points[this.next];
+		this.next = (this.next + 1) % this.points.length;
+		nTuple c = p.coordChange(RayTraceShadows.LIGHT, RayTraceShadows.LIGHT_BASIS_2,
+									RayTraceShadows.LIGHT_BASIS_3, p);
+		return Float.floatToRawIntBits(c.getY()) ^ Float.floatToRawIntBits(c.getZ());
+	}
+}
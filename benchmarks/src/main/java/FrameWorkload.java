@@ -0,0 +1,25 @@
+/*
+ * FrameWorkload.java
+ * Description: A full 256x256 frame traced through getRGB on one
+ * thread, the same sweep the serial renderer does.
+ */
+import raytrace.bench.Workload;
+
+public class FrameWorkload implements Workload {
+	private static final int SIZE = 256;
+	private Scene scene;
+
+	public void setUp(int spheres, int depth) {
+		this.scene = BenchScenes.scene(spheres, depth);
+	}
+
+	public long run() {
+		long sum = 0;
+		for (int v = 0; v < SIZE; v++) {
+			for (int u = 0; u < SIZE; u++) {
+				sum += RayTraceShadows.getRGB(this.scene, u, v, SIZE, SIZE);
+			}
+		}
+		return sum;
+	}
+}
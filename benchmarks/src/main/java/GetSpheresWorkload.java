@@ -0,0 +1,34 @@
+/*
+ * GetSpheresWorkload.java
+ * Description: Quadtree.getSpheres descent for points spread over the
+ * image plane.
+ */
+import java.util.*;
+import raytrace.bench.Workload;
+
+public class GetSpheresWorkload implements Workload {
+	private static final int POINTS = 4096;
+	private Quadtree tree;
+	private float[] xs, ys;
+	private int next;
+
+	public void setUp(int spheres, int depth) {
+		this.tree = BenchScenes.scene(spheres, depth).getTree();
+		Random rand = new Random(BenchScenes.SEED);
+		float sz = RayTraceShadows.IMG_PLANE_SZ;
+		this.xs = new float[POINTS];
+		this.ys = new float[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			this.xs[i] = (rand.nextFloat() * 2.0f - 1.0f) * sz;
+			this.ys[i] = (rand.nextFloat() * 2.0f - 1.0f) * sz;
+		}
+		this.next = 0;
+	}
+
+	public long run() {
+		int i = this.next;
+		this.next = (i + 1) % POINTS;
+		SphereList list = this.tree.getSpheres(this.xs[i], this.ys[i]);
+		return (list == null) ? -1 : list.getId();
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * InShadowWorkload.java
+ * Description: RayTraceShadows.inShadow for points on the visible side
+ * of the scene's spheres.
+ */
+import raytrace.bench.Workload;
+
+public class InShadowWorkload implements Workload {
+	private Scene scene;
+	private nTuple[] points;
+	private int next;
+
+	public void setUp(int spheres, int depth) {
+		this.scene = BenchScenes.scene(spheres, depth);
+		this.points = BenchScenes.hitPoints(this.scene, 4096);
+		this.next = 0;
+	}
+
+	public long run() {
+		nTuple p = this.points[this.next];
+		this.next = (this.next + 1) % this.points.length;
+		return RayTraceShadows.inShadow(this.scene, p) ? 1 : 0;
+	}
+}
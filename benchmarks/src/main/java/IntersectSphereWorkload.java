@@ -0,0 +1,25 @@
+/*
+ * IntersectSphereWorkload.java
+ * Description: ray.intersectSphere against each sphere in turn.
+ */
+import java.util.*;
+import raytrace.bench.Workload;
+
+public class IntersectSphereWorkload implements Workload {
+	private Sphere[] spheres;
+	private ray ray;
+	private int next;
+
+	public void setUp(int spheres, int depth) {
+		this.spheres = BenchScenes.spheres(spheres).toArray(new Sphere[0]);
+		nTuple camera = RayTraceShadows.CAMERA;
+		this.ray = new ray(camera, new nTuple().subtract(camera));
+		this.next = 0;
+	}
+
+	public long run() {
+		Sphere s = this.spheres[this.next];
+		this.next = (this.next + 1) % this.spheres.length;
+		return Float.floatToRawIntBits(this.ray.intersectSphere(s));
+	}
+}
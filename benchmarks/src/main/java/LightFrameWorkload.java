@@ -0,0 +1,25 @@
+/*
+ * LightFrameWorkload.java
+ * Description: LightFrame.toLight, the precomputed replacement for
+ * coordChange, on the same points.
+ */
+import raytrace.bench.Workload;
+
+public class LightFrameWorkload implements Workload {
+	private nTuple[] points;
+	private nTuple dest;
+	private int next;
+
+	public void setUp(int spheres, int depth) {
+		this.points = BenchScenes.hitPoints(BenchScenes.scene(Math.min(spheres, 1000), 0), 1024);
+		this.dest = new nTuple();
+		this.next = 0;
+	}
+
+	public long run() {
+		nTuple p = this.points[this.next];
+		this.next = (this.next + 1) % this.points.length;
+		nTuple c = RayTraceShadows.LIGHT_FRAME.toLight(p, this.dest);
+		return Float.floatToRawIntBits(c.getY()) ^ Float.floatToRawIntBits(c.getZ());
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * TreeBuildWorkload.java
+ * Description: Building both quadtrees from scratch with addSphere and
+ * addShadowSphere.
+ */
+import raytrace.bench.Workload;
+
+public class TreeBuildWorkload implements Workload {
+	private SphereStore store;
+	private int depth;
+
+	public void setUp(int spheres, int depth) {
+		this.store = new SphereStore(spheres);
+		for (Sphere s : BenchScenes.spheres(spheres)) {
+			this.store.add(s);
+		}
+		this.depth = depth;
+	}
+
+	public long run() {
+		float sz = RayTraceShadows.IMG_PLANE_SZ;
+		Quadtree tree = new Quadtree(-sz, -sz, sz, sz, this.depth, RayTraceShadows.CAM_Z, this.store);
+		Quadtree shadowTree = new Quadtree(-sz * 5, -sz * 5, sz * 5, sz * 5,
+											this.depth, RayTraceShadows.CAM_Z, this.store);
+		for (int id = 0; id < this.store.size(); id++) {
+			tree.addSphere(id);
+			shadowTree.addShadowSphere(id);
+		}
+		return System.identityHashCode(tree) ^ System.identityHashCode(shadowTree);
+	}
+}
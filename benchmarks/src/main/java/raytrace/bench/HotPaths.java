@@ -0,0 +1,41 @@
+/*
+ * HotPaths.java
+ * Description: JMH benchmark over the renderer's hot paths, each run
+ * for every combination of sphere count and quadtree depth.
+ */
+package raytrace.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPaths {
+	@Param({"IntersectSphere", "GetSpheres", "TreeBuild", "CoordChange",
+			"LightFrame", "InShadow", "Frame"})
+	public String workload;
+
+	@Param({"1000", "100000"})
+	public int spheres;
+
+	@Param({"4", "7"})
+	public int depth;
+
+	private Workload target;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ReflectiveOperationException {
+		this.target = (Workload) Class.forName(this.workload + "Workload")
+										.getDeclaredConstructor().newInstance();
+		this.target.setUp(this.spheres, this.depth);
+	}
+
+	@Benchmark
+	public long run() {
+		return this.target.run();
+	}
+}
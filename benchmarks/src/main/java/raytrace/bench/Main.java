@@ -0,0 +1,26 @@
+/*
+ * Main.java
+ * Description: Runs the benchmarks with the GC profiler attached, so
+ * allocation rates are reported next to the timings. Takes the usual
+ * JMH command line options, e.g. "-p workload=Frame".
+ */
+package raytrace.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class Main {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(cmd);
+		if (cmd.getIncludes().isEmpty()) {
+			builder.include(HotPaths.class.getSimpleName());
+		}
+		Options options = builder.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * Workload.java
+ * Description: One hot path of the renderer, set up for benchmarking.
+ * The renderer lives in the default package, which a JMH benchmark
+ * class (always in a named package) cannot refer to, so each hot path
+ * is wrapped in a default-package class implementing this interface
+ * and loaded by name.
+ */
+package raytrace.bench;
+
+public interface Workload {
+	// Build the scene (or whatever the path needs) before measuring
+	void setUp(int spheres, int depth);
+
+	// Perform one operation; the result is fed to a Blackhole
+	long run();
+}
@@ -91,6 +91,35 @@ public class nTuple {
 		return new nTuple(this.x / len, this.y / len, this.z / len); 
 	}
 
+	//////////////////////////////////////////////////////////////////
+	// IN-PLACE VECTOR OPERATIONS									//
+	// Same as above, but the result is written to dest (which may	//
+	// be this) and returned, so nothing is allocated				//
+	//////////////////////////////////////////////////////////////////
+	public nTuple set(float x, float y, float z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public nTuple scale(float factor, nTuple dest) {
+		return dest.set(this.x * factor, this.y * factor, this.z * factor);
+	}
+
+	public nTuple add(nTuple other, nTuple dest) {
+		return dest.set(this.x + other.getX(), this.y + other.getY(), this.z + other.getZ());
+	}
+
+	public nTuple subtract(nTuple other, nTuple dest) {
+		return dest.set(this.x - other.getX(), this.y - other.getY(), this.z - other.getZ());
+	}
+
+	public nTuple normalize(nTuple dest) {
+		float len = (float) Math.sqrt(this.dot(this));
+		return dest.set(this.x / len, this.y / len, this.z / len);
+	}
+
 	//////////////////////////////////////////////////////////////////
 	// GAUSS-JORDAN ELIMINATION										//
 	//////////////////////////////////////////////////////////////////
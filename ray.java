@@ -58,4 +58,12 @@ public class ray {
 	public nTuple pointAlongRay(float t) {
 		return this.camera.add(this.vector.scale(t));
 	}
+
+	// Finds a point along the ray from p in normalized direction v,
+	// writing it to dest
+	public static nTuple pointAlongRay(nTuple p, nTuple v, float t, nTuple dest) {
+		return dest.set(p.getX() + v.getX() * t,
+						p.getY() + v.getY() * t,
+						p.getZ() + v.getZ() * t);
+	}
 }